@@ -0,0 +1,24 @@
+package ly.count.android.api;
+
+/**
+ * Source of current time, replaceable in tests.
+ */
+interface Clock {
+	/** Wall clock, for times which are persisted or reported */
+	Clock SYSTEM = new Clock() {
+		@Override
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+	};
+
+	/** Time since boot, which never goes backwards; for delays measured within one process */
+	Clock ELAPSED = new Clock() {
+		@Override
+		public long currentTimeMillis() {
+			return android.os.SystemClock.elapsedRealtime();
+		}
+	};
+
+	long currentTimeMillis();
+}
@@ -0,0 +1,9 @@
+package ly.count.android.api;
+
+class Connection {
+	public long id = 0;
+	public String data = null;
+	// Number of queued rows merged into this one by RequestCoalescer and bytes it saved
+	public int merged = 0;
+	public int saved = 0;
+}
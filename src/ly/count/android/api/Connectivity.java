@@ -0,0 +1,59 @@
+package ly.count.android.api;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.Log;
+
+/**
+ * Tells whether device is online, replaceable in tests.
+ */
+interface Connectivity {
+	boolean isConnected();
+}
+
+/**
+ * ConnectivityManager-backed connectivity which also runs a callback whenever device goes online.
+ * Requires ACCESS_NETWORK_STATE permission, without it device is considered to be always online.
+ */
+class AndroidConnectivity extends BroadcastReceiver implements Connectivity {
+	// Application context, receiver and manager outlive any activity Countly was initialized with
+	private final Context context_;
+	private final ConnectivityManager manager_;
+	private final Runnable onConnected_;
+
+	AndroidConnectivity(Context context, Runnable onConnected) {
+		context_ = context.getApplicationContext();
+		manager_ = (ConnectivityManager) context_.getSystemService(Context.CONNECTIVITY_SERVICE);
+		onConnected_ = onConnected;
+		context_.registerReceiver(this, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+	}
+
+	/**
+	 * Stops listening to connectivity changes, callback isn't run anymore.
+	 */
+	void close() {
+		context_.unregisterReceiver(this);
+	}
+
+	@Override
+	public boolean isConnected() {
+		try {
+			NetworkInfo info = manager_.getActiveNetworkInfo();
+			return info != null && info.isConnected();
+		} catch (SecurityException e) {
+			return true;
+		}
+	}
+
+	@Override
+	public void onReceive(Context context, Intent intent) {
+		if (!intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false)) {
+			Log.d("Countly", "Network is available");
+			onConnected_.run();
+		}
+	}
+}
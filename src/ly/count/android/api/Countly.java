@@ -1,10 +1,17 @@
 package ly.count.android.api;
 
-import java.io.InputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.net.URI;
 import java.net.URLEncoder;
 import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPOutputStream;
 
 import android.app.Activity;
 import android.content.SharedPreferences;
@@ -12,9 +19,6 @@ import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GooglePlayServicesUtil;
 import com.google.android.gms.gcm.GoogleCloudMessaging;
 import org.OpenUDID.OpenUDID_manager;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -24,6 +28,7 @@ import android.content.pm.PackageManager.NameNotFoundException;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.telephony.TelephonyManager;
 import android.util.DisplayMetrics;
 import android.util.Log;
@@ -31,35 +36,62 @@ import android.view.Display;
 import android.view.WindowManager;
 
 public class Countly {
-	private static Countly sharedInstance_;
-	private Timer timer_;
-	private ConnectionQueue queue_;
-	private EventQueue eventQueue_;
+	/** When request queue is full, delete oldest requests */
+	public static final int QUEUE_OVERFLOW_DROP_OLDEST = 0;
+	/** When request queue is full, don't queue new requests */
+	public static final int QUEUE_OVERFLOW_DROP_NEWEST = 1;
+	/** When request queue is full, collapse consecutive session duration updates and drop oldest requests only if that's not enough */
+	public static final int QUEUE_OVERFLOW_MERGE = 2;
+
+	static final long DEFAULT_SESSION_UPDATE_INTERVAL = 60 * 1000;
+	static final long DEFAULT_EVENT_FLUSH_INTERVAL = 60 * 1000;
+	static final int EVENT_BATCH_SIZE = 10;
+
+	// Only run while some activity is visible
+	private final SessionTimers timers_;
+	private final ConnectionQueue queue_;
+	// Written under lock on this, read without it by event recording methods
+	private volatile EventQueue eventQueue_;
+	private volatile CountlyDB countlyDB_;
+	private boolean initialized_;
+	// Session state, guarded by lock on this
 	private boolean isVisible_;
-	private double unsentSessionLength_;
-	private double lastTime_;
+	private final SessionLength sessionLength_ = new SessionLength();
 	private int activityCount_;
-	private CountlyDB countlyDB_;
+	private int queueMaxRequests_ = 1000;
+	private long queueMaxBytes_ = 2 * 1024 * 1024;
+	private int queueOverflowPolicy_ = QUEUE_OVERFLOW_MERGE;
+	private boolean compactStorage_ = true;
+	private long eventCommitDelay_ = EventWriteBuffer.DEFAULT_MAX_DELAY;
+	private int eventCommitMutations_ = EventWriteBuffer.DEFAULT_MAX_MUTATIONS;
+
+	// Instance is created on first sharedInstance() call, class loading guarantees it's created only once
+	private static class SingletonHolder {
+		static final Countly instance = new Countly();
+	}
 
 	static public Countly sharedInstance() {
-		if (sharedInstance_ == null)
-			sharedInstance_ = new Countly();
-
-		return sharedInstance_;
+		return SingletonHolder.instance;
 	}
 
+	/**
+	 * Doesn't start any threads, they're started by init() and only when there's work for them.
+	 */
 	private Countly() {
 		queue_ = new ConnectionQueue();
-		timer_ = new Timer();
-		timer_.schedule(new TimerTask() {
+		timers_ = new SessionTimers(new Runnable() {
+			@Override
+			public void run() {
+				onSessionTimer();
+			}
+		}, new Runnable() {
 			@Override
 			public void run() {
-				onTimer();
+				onEventTimer();
 			}
-		}, 60 * 1000, 60 * 1000);
+		}, DEFAULT_SESSION_UPDATE_INTERVAL, DEFAULT_EVENT_FLUSH_INTERVAL);
 
 		isVisible_ = false;
-		unsentSessionLength_ = 0;
 		activityCount_ = 0;
 	}
 
@@ -71,29 +103,216 @@ public class Countly {
         init(activity, activity.getClass(), serverURL, appKey, gcmSenderId);
     }
 
-	public void init(Activity activity, Class<? extends Activity> activityClass, String serverURL, String appKey, String gcmSenderId) {
+	/**
+	 * Initializes Countly. Calling it again without shutdown() in between does nothing.
+	 */
+	public synchronized void init(Activity activity, Class<? extends Activity> activityClass, String serverURL, String appKey, String gcmSenderId) {
+		if (initialized_) {
+			Log.w("Countly", "Countly is already initialized, ignoring init()");
+			return;
+		}
+
+		// Events recorded after previous shutdown() are only in write buffer, new queue reads them from SQLite
+		if (eventQueue_ != null)
+			eventQueue_.getBuffer().commit();
+
 		OpenUDID_manager.sync(activity);
-		countlyDB_ = new CountlyDB(activity);
+		// One helper for process lifetime: shutdown() closes it and it reopens database on next use
+		CountlyDB countlyDB = countlyDB_;
+		if (countlyDB == null)
+			countlyDB = new CountlyDB(activity.getApplicationContext());
+		countlyDB.setLimits(queueMaxRequests_, queueMaxBytes_, queueOverflowPolicy_);
+		countlyDB.setCompactStorage(compactStorage_);
+		countlyDB_ = countlyDB;
 
 		queue_.setContext(activity);
 		queue_.setServerURL(serverURL);
 		queue_.setAppKey(appKey);
-		queue_.setCountlyDB(countlyDB_);
+		queue_.setCountlyDB(countlyDB);
+		queue_.start();
+
+		EventQueue eventQueue = new EventQueue(countlyDB);
+		eventQueue.getBuffer().setDurability(eventCommitDelay_, eventCommitMutations_);
+		eventQueue_ = eventQueue;
+
+		initialized_ = true;
 
-		eventQueue_ = new EventQueue(countlyDB_);
+		if (isVisible_)
+			timers_.start();
 
         if (!"".equals(gcmSenderId)) {
             CountlyMessaging.initMessaging(activity, activityClass, gcmSenderId);
         }
 	}
 
-	public void onStart() {
+	/**
+	 * Stops background work: cancels session and event timers, sends recorded events, writes them to disk and lets
+	 * uploader thread finish sending what's queued before it exits. Nothing is lost, requests which couldn't be
+	 * sent stay queued until Countly is initialized again. Database is closed and connectivity receiver
+	 * unregistered once uploader is done.
+	 */
+	public synchronized void shutdown() {
+		if (!initialized_)
+			return;
+
+		timers_.stop();
+
+		String events = eventQueue_.events();
+		if (events != null)
+			queue_.recordEvents(events);
+		eventQueue_.getBuffer().shutdown();
+		queue_.shutdown();
+
+		initialized_ = false;
+	}
+
+	/**
+	 * Sets how often session duration is reported while app is in foreground. Pass 0 to only report it when
+	 * app goes to background. Default is 60 seconds.
+	 */
+	public void setSessionUpdateInterval(long millis) {
+		timers_.setSessionUpdateInterval(millis);
+	}
+
+	/**
+	 * Sets how often recorded events are sent while app is in foreground, regardless of how many there are.
+	 * Pass 0 to only send them in batches of 10 and when app goes to background. Default is 60 seconds.
+	 */
+	public void setEventFlushInterval(long millis) {
+		timers_.setEventFlushInterval(millis);
+	}
+
+	/**
+	 * Replaces executor timers run on, e.g. with one controlled by test. By default a dedicated thread
+	 * is started whenever app comes to foreground and stopped when it goes to background.
+	 */
+	void setScheduler(ScheduledExecutorService scheduler) {
+		timers_.setScheduler(scheduler);
+	}
+
+	synchronized void setClock(Clock clock) {
+		sessionLength_.setClock(clock);
+	}
+
+	/**
+	 * Enables bulk upload mode: up to maxRequests queued requests, but no more than maxBytes of them,
+	 * are sent to the server in a single /i/bulk POST instead of one GET each.
+	 * Pass maxRequests of 1 or less to go back to one request per HTTP call.
+	 */
+	public void setBulkUpload(int maxRequests, int maxBytes) {
+		queue_.setBulkUpload(maxRequests, maxBytes);
+	}
+
+	/**
+	 * Limits the number and total size of requests waiting to be sent, e.g. while device is offline.
+	 * Pass 0 to lift any of limits. By default queue holds up to 1000 requests or 2 MB of storage.
+	 * @param overflowPolicy one of QUEUE_OVERFLOW_* constants
+	 */
+	public void setQueueLimits(int maxRequests, long maxBytes, int overflowPolicy) {
+		queueMaxRequests_ = maxRequests;
+		queueMaxBytes_ = maxBytes;
+		queueOverflowPolicy_ = overflowPolicy;
+
+		if (countlyDB_ != null)
+			countlyDB_.setLimits(maxRequests, maxBytes, overflowPolicy);
+	}
+
+	/**
+	 * Queued requests are stored in compact binary form by default, which takes about half the space
+	 * of their query strings. Pass false to store new requests as plain query strings.
+	 * Requests already stored in either form are read regardless of this setting.
+	 */
+	public void setCompactStorage(boolean enabled) {
+		compactStorage_ = enabled;
+
+		if (countlyDB_ != null)
+			countlyDB_.setCompactStorage(enabled);
+	}
+
+	/**
+	 * Sends requests longer than threshold characters as gzip-compressed POST body instead of GET query string,
+	 * which also avoids URL length limits for large event batches. Bulk uploads are compressed above the same
+	 * threshold. Server (or proxy in front of it) must accept Content-Encoding: gzip. Disabled by default, pass 0 to disable.
+	 */
+	public void setUploadCompression(int threshold) {
+		queue_.setCompressionThreshold(threshold);
+	}
+
+	/**
+	 * @return total size of upload payloads before compression
+	 */
+	public long getUploadRawBytes() {
+		return queue_.getRawBytes();
+	}
+
+	/**
+	 * @return total size of upload payloads actually sent, which is less than getUploadRawBytes() thanks to compression
+	 */
+	public long getUploadSentBytes() {
+		return queue_.getSentBytes();
+	}
+
+	/**
+	 * @return number of requests lost because request queue was full
+	 */
+	public long getDroppedRequests() {
+		return countlyDB_ == null ? 0 : countlyDB_.getDropped();
+	}
+
+	/**
+	 * @return number of session duration updates merged into other ones because request queue was full
+	 */
+	public long getMergedRequests() {
+		return countlyDB_ == null ? 0 : countlyDB_.getMerged();
+	}
+
+	/**
+	 * @return number of requests which weren't sent separately because they were merged into adjacent ones
+	 */
+	public long getCoalescedRequests() {
+		return queue_.getCoalescer().getRequestsSaved();
+	}
+
+	/**
+	 * @return number of bytes saved by merging adjacent requests before sending
+	 */
+	public long getCoalescedBytes() {
+		return queue_.getCoalescer().getBytesSaved();
+	}
+
+	/**
+	 * Recorded events are kept in memory and written to disk in batches. A crash loses at most
+	 * events recorded within last maxDelay milliseconds or last maxMutations event recordings.
+	 */
+	public void setEventDurability(long maxDelay, int maxMutations) {
+		eventCommitDelay_ = maxDelay;
+		eventCommitMutations_ = maxMutations;
+
+		if (eventQueue_ != null)
+			eventQueue_.getBuffer().setDurability(maxDelay, maxMutations);
+	}
+
+	/**
+	 * @return number of transactions used to persist recorded events
+	 */
+	public long getEventCommits() {
+		return eventQueue_ == null ? 0 : eventQueue_.getBuffer().getCommits();
+	}
+
+	/**
+	 * @return number of event recordings which were merged into another pending write instead of touching disk
+	 */
+	public long getCoalescedEventWrites() {
+		return eventQueue_ == null ? 0 : eventQueue_.getBuffer().getCoalesced();
+	}
+
+	public synchronized void onStart() {
 		activityCount_++;
 		if (activityCount_ == 1)
 			onStartHelper();
 	}
 
-	public void onStop() {
+	public synchronized void onStop() {
 		activityCount_--;
 		if (activityCount_ == 0)
 			onStopHelper();
@@ -103,93 +322,132 @@ public class Countly {
         queue_.tokenSession(registrationId);
 	}
 
-	public void onStartHelper() {
-		lastTime_ = System.currentTimeMillis() / 1000.0;
+	public synchronized void onStartHelper() {
+		sessionLength_.start();
 
 		queue_.beginSession();
 
 		isVisible_ = true;
+		// Not initialized yet, init() starts them
+		if (initialized_)
+			timers_.start();
 	}
 
-	public void onStopHelper() {
-		if (eventQueue_.size() > 0)
-			queue_.recordEvents(eventQueue_.events());
+	public synchronized void onStopHelper() {
+		timers_.stop();
 
-		double currTime = System.currentTimeMillis() / 1000.0;
-		unsentSessionLength_ += currTime - lastTime_;
+		String events = eventQueue_.events();
+		eventQueue_.getBuffer().commit();
 
-		int duration = (int) unsentSessionLength_;
-		queue_.endSession(duration);
-		unsentSessionLength_ -= duration;
+		queue_.endSession(sessionLength_.report(), events);
 
 		isVisible_ = false;
 	}
 
 	public void recordEvent(String key, int count) {
 		eventQueue_.recordEvent(key, count);
-
-		if (eventQueue_.size() >= 10)
-			queue_.recordEvents(eventQueue_.events());
+		onEventRecorded();
 	}
 
 	public void recordEvent(String key, int count, double sum) {
 		eventQueue_.recordEvent(key, count, sum);
-
-		if (eventQueue_.size() >= 10)
-			queue_.recordEvents(eventQueue_.events());
+		onEventRecorded();
 	}
 
 	public void recordEvent(String key, Map<String, String> segmentation, int count) {
 		eventQueue_.recordEvent(key, segmentation, count);
-
-		if (eventQueue_.size() >= 10)
-			queue_.recordEvents(eventQueue_.events());
+		onEventRecorded();
 	}
 
 	public void recordEvent(String key, Map<String, String> segmentation, int count, double sum) {
 		eventQueue_.recordEvent(key, segmentation, count, sum);
-
-		if (eventQueue_.size() >= 10)
-			queue_.recordEvents(eventQueue_.events());
+		onEventRecorded();
 	}
 
 	public void recordMessageAction (String key) {
 		eventQueue_.recordPushAction(key);
-
-		if (eventQueue_.size() >= 10)
-			queue_.recordEvents(eventQueue_.events());
+		onEventRecorded();
 	}
 
 	public void recordMessageOpen (String key) {
 		eventQueue_.recordPushOpen(key);
+		onEventRecorded();
+	}
 
-		if (eventQueue_.size() >= 10)
-			queue_.recordEvents(eventQueue_.events());
+	/**
+	 * Sends events once there are EVENT_BATCH_SIZE aggregates. Serializing them and queueing the request
+	 * take a transaction, so that's left to uploader thread instead of whichever thread recorded the event.
+	 */
+	private void onEventRecorded() {
+		EventQueue eventQueue = eventQueue_;
+		if (eventQueue.size() >= EVENT_BATCH_SIZE)
+			queue_.flushEvents(eventQueue);
 	}
 
-	private void onTimer() {
+	private synchronized void onSessionTimer() {
 		if (isVisible_ == false)
 			return;
 
-		double currTime = System.currentTimeMillis() / 1000.0;
-		unsentSessionLength_ += currTime - lastTime_;
-		lastTime_ = currTime;
+		queue_.updateSession(sessionLength_.report());
+	}
 
-		int duration = (int) unsentSessionLength_;
-		queue_.updateSession(duration);
-		unsentSessionLength_ -= duration;
+	private synchronized void onEventTimer() {
+		if (isVisible_ == false)
+			return;
 
-		if (eventQueue_.size() > 0)
-			queue_.recordEvents(eventQueue_.events());
+		String events = eventQueue_.events();
+		if (events != null)
+			queue_.recordEvents(events);
 	}
 }
 
 class ConnectionQueue {
+	private static final int WINDOW_SIZE = 16;
+	// Since Gingerbread uploader thread goes away after being idle this long and comes back with the next request
+	private static final long KEEP_ALIVE_SECONDS = 30;
+
 	private CountlyDB queue_;
-	private Thread thread_ = null;
+	// Created on first use and kept for queue lifetime, so that all drain passes ever run on its single thread
+	private ScheduledThreadPoolExecutor executor_;
+	private ScheduledFuture<?> retryFuture_;
+	// Set by shutdown() till next start(), nothing but the final drain pass runs meanwhile and it doesn't schedule retries
+	private volatile boolean stopped_ = false;
+	private final AtomicBoolean drainScheduled_ = new AtomicBoolean(false);
+	private final AtomicBoolean flushScheduled_ = new AtomicBoolean(false);
+	private final Runnable drainer_ = new Runnable() {
+		@Override
+		public void run() {
+			// Cleared before draining, so that requests offered meanwhile schedule one more pass
+			drainScheduled_.set(false);
+			drain();
+		}
+	};
+	private final Runnable retrier_ = new Runnable() {
+		@Override
+		public void run() {
+			retry_.expire();
+			tick();
+		}
+	};
+	private RetryScheduler retry_ = new RetryScheduler();
+	private final RequestCoalescer coalescer_ = new RequestCoalescer();
+	private Connectivity connectivity_;
 	private String appKey_;
 	private Context context_;
 	private String serverURL_;
+	private int bulkSize_ = 1;
+	private int bulkMaxBytes_ = 0;
+	private int compressionThreshold_ = 0;
+	private long rawBytes_ = 0;
+	private long sentBytes_ = 0;
+	private Transport transport_ = new HttpTransport();
+
+	static {
+		// Connection reuse is broken in HttpURLConnection before Froyo
+		if (android.os.Build.VERSION.SDK_INT < 8) {
+			System.setProperty("http.keepAlive", "false");
+		}
+	}
 
 	public void setAppKey(String appKey) {
 		appKey_ = appKey;
@@ -197,6 +455,16 @@ class ConnectionQueue {
 
 	public void setContext(Context context) {
 		context_ = context;
+
+		if (connectivity_ == null) {
+			connectivity_ = new AndroidConnectivity(context, new Runnable() {
+				@Override
+				public void run() {
+					retry_.reset();
+					tick();
+				}
+			});
+		}
 	}
 
 	public void setServerURL(String serverURL) {
@@ -207,17 +475,59 @@ class ConnectionQueue {
 		queue_ = countlyDB;
 	}
 
-	public void beginSession() {
-		String data;
-		data = "app_key=" + appKey_;
-		data += "&" + "device_id=" + DeviceInfo.getUDID();
-		data += "&" + "timestamp=" + (long) (System.currentTimeMillis() / 1000.0);
-		data += "&" + "sdk_version=" + "2.0";
-		data += "&" + "begin_session=" + "1";
-		data += "&" + "metrics=" + DeviceInfo.getMetrics(context_);
+	public void setBulkUpload(int maxRequests, int maxBytes) {
+		bulkSize_ = maxRequests;
+		bulkMaxBytes_ = maxBytes;
+	}
+
+	/**
+	 * @param threshold requests longer than this are sent as gzip-compressed POST instead of GET, 0 to always use GET
+	 */
+	public void setCompressionThreshold(int threshold) {
+		compressionThreshold_ = threshold;
+	}
+
+	public void setTransport(Transport transport) {
+		transport_ = transport;
+	}
+
+	/**
+	 * @return total size of request payloads as they would be sent uncompressed
+	 */
+	public synchronized long getRawBytes() {
+		return rawBytes_;
+	}
+
+	/**
+	 * @return total size of request payloads actually sent, after compression
+	 */
+	public synchronized long getSentBytes() {
+		return sentBytes_;
+	}
 
-        String dimensions = DeviceInfo.getDimensionsJson(context_);
-        if (dimensions != null) data += "&dimensions=" + dimensions;
+	public RequestCoalescer getCoalescer() {
+		return coalescer_;
+	}
+
+	public void setRetryScheduler(RetryScheduler retry) {
+		retry_ = retry;
+	}
+
+	public void setConnectivity(Connectivity connectivity) {
+		connectivity_ = connectivity;
+	}
+
+	private RequestBuilder request() {
+		return RequestBuilder.obtain(appKey_, DeviceInfo.getUDID(), System.currentTimeMillis() / 1000);
+	}
+
+	public void beginSession() {
+		String data = request()
+				.param("sdk_version", "2.0")
+				.param("begin_session", 1)
+				.param("metrics", DeviceInfo.getMetrics(context_))
+				.optional("dimensions", DeviceInfo.getDimensionsJson(context_))
+				.build();
 
 		queue_.offer(data);
 
@@ -225,14 +535,10 @@ class ConnectionQueue {
 	}
 
 	public void updateSession(int duration) {
-		String data;
-		data = "app_key=" + appKey_;
-		data += "&" + "device_id=" + DeviceInfo.getUDID();
-		data += "&" + "timestamp=" + (long) (System.currentTimeMillis() / 1000.0);
-		data += "&" + "session_duration=" + duration;
-
-        String dimensions = DeviceInfo.getDimensionsJson(context_);
-        if (dimensions != null) data += "&dimensions=" + dimensions;
+		String data = request()
+				.param("session_duration", duration)
+				.optional("dimensions", DeviceInfo.getDimensionsJson(context_))
+				.build();
 
 		queue_.offer(data);
 
@@ -242,32 +548,34 @@ class ConnectionQueue {
 	public void tokenSession(String token) {
         DeviceInfo.addDimension(context_, "push", "true");
 
-		String data;
-		data = "app_key=" + appKey_;
-		data += "&" + "device_id=" + DeviceInfo.getUDID();
-		data += "&" + "timestamp=" + (long) (System.currentTimeMillis() / 1000.0);
-		data += "&" + "token_session=1";
-		data += "&" + "android_token=" + token;
-		data += "&" + "locale=" + Locale.getDefault().getLanguage();
-
-        String dimensions = DeviceInfo.getDimensionsJson(context_);
-        if (dimensions != null) data += "&dimensions=" + dimensions;
+		String data = request()
+				.param("token_session", 1)
+				.param("android_token", token)
+				.param("locale", Locale.getDefault().getLanguage())
+				.optional("dimensions", DeviceInfo.getDimensionsJson(context_))
+				.build();
 
 		queue_.offer(data);
 
 		tick();
 	}
 
-	public void endSession(int duration) {
-		String data;
-		data = "app_key=" + appKey_;
-		data += "&" + "device_id=" + DeviceInfo.getUDID();
-		data += "&" + "timestamp=" + (long) (System.currentTimeMillis() / 1000.0);
-		data += "&" + "end_session=" + "1";
-		data += "&" + "session_duration=" + duration;
+	/**
+	 * Ends session. Events recorded during it, if any, are queued right before session end in the same
+	 * transaction, so they never get queued without it or the other way round.
+	 * @param events URL-encoded JSON array of events or null if there are none
+	 */
+	public void endSession(int duration, String events) {
+		ArrayList<String> data = new ArrayList<String>(2);
+
+		if (events != null)
+			data.add(eventsRequest(events));
 
-        String dimensions = DeviceInfo.getDimensionsJson(context_);
-        if (dimensions != null) data += "&dimensions=" + dimensions;
+		data.add(request()
+				.param("end_session", 1)
+				.param("session_duration", duration)
+				.optional("dimensions", DeviceInfo.getDimensionsJson(context_))
+				.build());
 
 		queue_.offer(data);
 
@@ -275,71 +583,328 @@ class ConnectionQueue {
 	}
 
 	public void recordEvents(String events) {
-		String data;
-		data = "app_key=" + appKey_;
-		data += "&" + "device_id=" + DeviceInfo.getUDID();
-		data += "&" + "timestamp=" + (long) (System.currentTimeMillis() / 1000.0);
-		data += "&" + "events=" + events;
+		queue_.offer(eventsRequest(events));
+
+		tick();
+	}
 
-        String dimensions = DeviceInfo.getDimensionsJson(context_);
-        if (dimensions != null) data += "&dimensions=" + dimensions;
+	/**
+	 * Takes events out of eventQueue and queues them on uploader thread. Flushes requested before that
+	 * runs are one flush; if another one emptied eventQueue first, nothing is queued.
+	 */
+	public void flushEvents(final EventQueue eventQueue) {
+		if (!flushScheduled_.compareAndSet(false, true))
+			return;
 
-		queue_.offer(data);
+		executor().execute(new Runnable() {
+			@Override
+			public void run() {
+				flushScheduled_.set(false);
 
-		tick();
+				String events = eventQueue.events();
+				if (events != null)
+					recordEvents(events);
+			}
+		});
+	}
+
+	private String eventsRequest(String events) {
+		return request()
+				.param("events", events)
+				.optional("dimensions", DeviceInfo.getDimensionsJson(context_))
+				.build();
 	}
 
+	/**
+	 * Signals uploader thread that there are requests to send. At most one drain pass is pending at any time
+	 * and all passes run on the same thread, so a request can never be sent by two drainers at once.
+	 * Ignored after shutdown(), requests offered meanwhile are sent after start().
+	 */
 	private void tick() {
-		if (thread_ != null && thread_.isAlive())
+		if (stopped_)
 			return;
+		if (drainScheduled_.compareAndSet(false, true))
+			executor().execute(drainer_);
+	}
+
+	private synchronized ScheduledExecutorService executor() {
+		if (executor_ == null) {
+			ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "Countly uploader");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			// Core thread timeout is only available since Gingerbread, thread just stays around before it
+			if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.GINGERBREAD) {
+				executor.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+				executor.allowCoreThreadTimeOut(true);
+			}
+			executor_ = executor;
+		}
+		return executor_;
+	}
+
+	/**
+	 * Resumes uploads after shutdown() and sends whatever was queued meanwhile.
+	 */
+	public void start() {
+		if (stopped_) {
+			stopped_ = false;
+			tick();
+		}
+	}
 
-		if (queue_.isEmpty())
+	/**
+	 * Makes one last attempt to send everything queued, drops pending retry and stops listening to connectivity
+	 * changes. Database is closed after the final drain pass. Uploader thread stops once it's idle,
+	 * ticks are ignored until start().
+	 */
+	public synchronized void shutdown() {
+		stopped_ = true;
+
+		if (connectivity_ instanceof AndroidConnectivity) {
+			((AndroidConnectivity) connectivity_).close();
+			connectivity_ = null;
+		}
+
+		final CountlyDB queue = queue_;
+		if (executor_ == null) {
+			if (queue != null)
+				queue.close();
 			return;
+		}
 
-		thread_ = new Thread() {
-			@Override
-			public void run() {
-				while (true) {
-					String data = queue_.peek();
+		if (retryFuture_ != null) {
+			retryFuture_.cancel(false);
+			executor_.purge();
+			retryFuture_ = null;
+		}
+		// Scheduled retry is dropped, don't let its gate block uploads after next start
+		retry_.expire();
+
+		if (drainScheduled_.compareAndSet(false, true))
+			executor_.execute(drainer_);
+
+		// Single uploader thread runs this after the drain pass above
+		if (queue != null) {
+			executor_.execute(new Runnable() {
+				@Override
+				public void run() {
+					queue.close();
+				}
+			});
+		}
+	}
 
-					if (data == null)
-						break;
+	private void drain() {
+		// Retry is already scheduled, it will drain the queue when the time comes
+		if (retry_.isBackingOff())
+			return;
 
-					int index = data.indexOf("REPLACE_UDID");
-					if (index != -1) {
-						if (OpenUDID_manager.isInitialized() == false)
-							break;
-						data = data.replaceFirst("REPLACE_UDID", OpenUDID_manager.getOpenUDID());
-					}
+		// Connectivity callback will tick once device is back online
+		if (connectivity_ != null && !connectivity_.isConnected()) {
+			Log.d("Countly", "No network, postponing upload");
+			return;
+		}
 
-					try {
-						DefaultHttpClient httpClient = new DefaultHttpClient();
-						HttpGet method = new HttpGet(new URI(serverURL_ + "/i?" + data));
-						HttpResponse response = httpClient.execute(method);
-						InputStream input = response.getEntity().getContent();
-						while (input.read() != -1)
-							;
-						httpClient.getConnectionManager().shutdown();
-
-						Log.d("Countly", "ok ->" + data);
-
-						queue_.poll();
-					} catch (Exception e) {
-						Log.d("Countly", e.toString());
-						Log.d("Countly", "error ->" + data);
-						break;
-					}
+		if (bulkSize_ > 1) {
+			while (sendBulk())
+				;
+		} else {
+			while (sendWindow())
+				;
+		}
+	}
+
+	/**
+	 * Sends next window of queued requests one by one, deleting each one as soon as it's sent.
+	 * @return true if the whole window was sent and there might be more requests to send
+	 */
+	private boolean sendWindow() {
+		ArrayList<Connection> connections = coalescer_.coalesce(queue_.peekWindow(WINDOW_SIZE));
+
+		if (connections.isEmpty())
+			return false;
+
+		for (Connection connection : connections) {
+			String data = connection.data;
+
+			if (RequestBuilder.hasUdidPlaceholder(data)) {
+				if (OpenUDID_manager.isInitialized() == false)
+					return false;
+				data = RequestBuilder.bindUdid(data, OpenUDID_manager.getOpenUDID());
+			}
+
+			int result;
+			try {
+				if (compressionThreshold_ > 0 && data.length() > compressionThreshold_) {
+					result = RetryScheduler.classify(post("/i", data));
+				} else {
+					account(data.length(), data.length());
+					result = RetryScheduler.classify(transport_.get(serverURL_ + "/i?" + data));
 				}
+			} catch (IOException e) {
+				Log.d("Countly", e.toString());
+				result = RetryScheduler.FAILURE_NETWORK;
 			}
-		};
 
-		thread_.start();
+			if (RetryScheduler.isRetryable(result)) {
+				Log.d("Countly", "error ->" + data);
+				retryLater();
+				return false;
+			}
+
+			if (result == RetryScheduler.SUCCESS)
+				Log.d("Countly", "ok ->" + data);
+			else
+				Log.w("Countly", "rejected, dropping ->" + data);
+
+			// Coalesced connection covers all rows up to its ID, previous ones are already sent
+			retry_.reset();
+			queue_.deleteUpTo(connection.id);
+			coalescer_.sent(connection);
+		}
+
+		return true;
+	}
+
+	private void retryLater() {
+		long delay = retry_.onFailure();
+		Log.d("Countly", "Retrying in " + delay + " ms after " + retry_.getFailures() + " failure(s)");
+		synchronized (this) {
+			// Shut down meanwhile, requests stay queued until next start
+			if (stopped_)
+				return;
+			retryFuture_ = executor().schedule(retrier_, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Sends next batch of queued requests in a single /i/bulk POST and removes them from the queue
+	 * once server accepted the batch.
+	 * @return true if batch was sent and there might be more requests to send
+	 */
+	private boolean sendBulk() {
+		ArrayList<Connection> connections = coalescer_.coalesce(queue_.peekWindow(bulkSize_));
+		if (connections.isEmpty())
+			return false;
+
+		ArrayList<Connection> batch = new ArrayList<Connection>();
+		JSONArray requests = new JSONArray();
+		int bytes = 0;
+
+		for (Connection connection : connections) {
+			String data = connection.data;
+
+			if (RequestBuilder.hasUdidPlaceholder(data)) {
+				if (OpenUDID_manager.isInitialized() == false)
+					break;
+				data = RequestBuilder.bindUdid(data, OpenUDID_manager.getOpenUDID());
+			}
+
+			if (bulkMaxBytes_ > 0 && !batch.isEmpty() && bytes + data.length() > bulkMaxBytes_)
+				break;
+
+			requests.put(toJSON(data));
+			batch.add(connection);
+			bytes += data.length();
+		}
+
+		if (batch.isEmpty())
+			return false;
+
+		int result;
+		try {
+			String body = "app_key=" + appKey_ + "&requests=" + URLEncoder.encode(requests.toString(), "UTF-8");
+			result = RetryScheduler.classify(post("/i/bulk", body));
+		} catch (IOException e) {
+			Log.d("Countly", e.toString());
+			result = RetryScheduler.FAILURE_NETWORK;
+		}
+
+		if (RetryScheduler.isRetryable(result)) {
+			Log.d("Countly", "error -> bulk of " + batch.size());
+			retryLater();
+			return false;
+		}
+
+		if (result == RetryScheduler.SUCCESS)
+			Log.d("Countly", "ok -> bulk of " + batch.size());
+		else
+			Log.w("Countly", "rejected, dropping -> bulk of " + batch.size());
+
+		// Batch is always a prefix of the window, so everything up to its last request can go
+		retry_.reset();
+		queue_.deleteUpTo(batch.get(batch.size() - 1).id);
+		for (Connection connection : batch) {
+			coalescer_.sent(connection);
+		}
+		return true;
+	}
+
+	/**
+	 * POSTs form body, gzip-compressed if it's longer than compression threshold and compression actually helps.
+	 * @return HTTP status code
+	 */
+	private int post(String path, String body) throws IOException {
+		byte[] raw = body.getBytes("UTF-8");
+
+		if (compressionThreshold_ > 0 && raw.length > compressionThreshold_) {
+			byte[] compressed = gzip(raw);
+			if (compressed.length < raw.length) {
+				account(raw.length, compressed.length);
+				return transport_.post(serverURL_ + path, compressed, "gzip");
+			}
+		}
+
+		account(raw.length, raw.length);
+		return transport_.post(serverURL_ + path, raw, null);
+	}
+
+	private static byte[] gzip(byte[] data) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4);
+		GZIPOutputStream gzip = new GZIPOutputStream(out);
+		try {
+			gzip.write(data);
+		} finally {
+			gzip.close();
+		}
+		return out.toByteArray();
+	}
+
+	private synchronized void account(long raw, long sent) {
+		rawBytes_ += raw;
+		sentBytes_ += sent;
+	}
+
+	/**
+	 * Converts URL-encoded query string into JSON object of request parameters as expected by /i/bulk.
+	 */
+	private static JSONObject toJSON(String data) {
+		JSONObject json = new JSONObject();
+
+		for (String pair : data.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq <= 0)
+				continue;
+
+			try {
+				json.put(pair.substring(0, eq), java.net.URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+			} catch (Exception e) {
+				Log.d("Countly", e.toString());
+			}
+		}
+
+		return json;
 	}
 }
 
 class DeviceInfo {
 	public static String getUDID() {
-		return OpenUDID_manager.isInitialized() == false ? "REPLACE_UDID" : OpenUDID_manager.getOpenUDID();
+		return OpenUDID_manager.isInitialized() == false ? RequestBuilder.UDID_PLACEHOLDER : OpenUDID_manager.getOpenUDID();
 	}
 
     private static final String DIMENSIONS_PROPERTY = "countly_dimensions";
@@ -349,51 +914,80 @@ class DeviceInfo {
         return str.replace("\"", "\\\"").replace("\\", "\\\\");
     }
 
-    public static String getDimensionsJson(Context context) {
-        Map<String, String> dimensions = getDimensions(context);
-        if (dimensions == null) return null;
+    // Encoded dimensions JSON and device metrics, computed once and reused for every request
+    private static boolean dimensionsLoaded_ = false;
+    private static Map<String, String> dimensions_;
+    private static String dimensionsJson_;
+    private static String metrics_;
+    private static Locale metricsLocale_;
+    private static int metricsOrientation_;
+
+    public static synchronized String getDimensionsJson(Context context) {
+        loadDimensions(context);
+        return dimensionsJson_;
+    }
 
-        StringBuilder json = new StringBuilder("{");
-        for (String key : dimensions.keySet()) {
-            if (json.length() > 1) json.append(',');
-            json.append('"').append(key).append("\":\"").append(escape(dimensions.get(key))).append("\"");
-        }
-        json.append('}');
+    public static synchronized Map<String, String> getDimensions(Context context) {
+        loadDimensions(context);
+        return dimensions_ == null ? null : new HashMap<String, String>(dimensions_);
+    }
 
-        try {
-            return URLEncoder.encode(json.toString(), "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            return null;
+    public static synchronized void addDimension(Context context, String key, String value) {
+        loadDimensions(context);
+
+        if (dimensions_ != null && value.equals(dimensions_.get(key))) return;
+
+        Map<String, String> dimensions = dimensions_ == null ? new HashMap<String, String>() : new HashMap<String, String>(dimensions_);
+        dimensions.put(key, value);
+
+        Set<String> dims = new HashSet<String>();
+        for (String k : dimensions.keySet()) {
+            dims.add(k + DIMENSION_KV_SEPARATOR + dimensions.get(k));
         }
+        context.getApplicationContext().getSharedPreferences(Countly.class.getSimpleName(), Context.MODE_PRIVATE).edit()
+                .putStringSet(DIMENSIONS_PROPERTY, dims).commit();
+
+        setDimensions(dimensions);
     }
 
-    public static Map<String, String> getDimensions(Context context) {
+    private static void loadDimensions(Context context) {
+        if (dimensionsLoaded_) return;
+
         Set<String> dims = context.getApplicationContext().getSharedPreferences(Countly.class.getSimpleName(),
                 Context.MODE_PRIVATE).getStringSet(DIMENSIONS_PROPERTY, null);
 
-        if (dims == null) return null;
-        else {
-            Map<String, String> dimensions = new HashMap<String, String>();
+        Map<String, String> dimensions = new HashMap<String, String>();
+        if (dims != null) {
             for (String dim : dims) {
                 String[] kv = dim.split(DIMENSION_KV_SEPARATOR);
                 if (kv.length > 0) dimensions.put(kv[0], kv[1]);
             }
-            return dimensions.size() > 0 ? dimensions : null;
         }
+
+        setDimensions(dimensions);
+        dimensionsLoaded_ = true;
     }
 
-    public static void addDimension(Context context, String key, String value) {
-        Map<String, String> dimensions = getDimensions(context);
-        if (dimensions == null) dimensions = new HashMap<String, String>();
+    private static void setDimensions(Map<String, String> dimensions) {
+        if (dimensions.size() == 0) {
+            dimensions_ = null;
+            dimensionsJson_ = null;
+            return;
+        }
 
-        dimensions.put(key, value);
+        StringBuilder json = new StringBuilder("{");
+        for (String key : dimensions.keySet()) {
+            if (json.length() > 1) json.append(',');
+            json.append('"').append(key).append("\":\"").append(escape(dimensions.get(key))).append("\"");
+        }
+        json.append('}');
 
-        Set<String> dims = new HashSet<String>();
-        for (String k : dimensions.keySet()) {
-            dims.add(k + DIMENSION_KV_SEPARATOR + dimensions.get(k));
+        dimensions_ = dimensions;
+        try {
+            dimensionsJson_ = URLEncoder.encode(json.toString(), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            dimensionsJson_ = null;
         }
-        context.getApplicationContext().getSharedPreferences(Countly.class.getSimpleName(), Context.MODE_PRIVATE).edit()
-                .putStringSet(DIMENSIONS_PROPERTY, dims).commit();
     }
 
 	public static String getOS() {
@@ -439,7 +1033,23 @@ class DeviceInfo {
 		return result;
 	}
 
-	public static String getMetrics(Context context) {
+	/**
+	 * Metrics are computed once and recomputed only when locale or screen orientation (and thus resolution) changes.
+	 */
+	public static synchronized String getMetrics(Context context) {
+		Locale locale = Locale.getDefault();
+		int orientation = context.getResources().getConfiguration().orientation;
+
+		if (metrics_ == null || !locale.equals(metricsLocale_) || orientation != metricsOrientation_) {
+			metrics_ = computeMetrics(context);
+			metricsLocale_ = locale;
+			metricsOrientation_ = orientation;
+		}
+
+		return metrics_;
+	}
+
+	private static String computeMetrics(Context context) {
 		String result = "";		
 		JSONObject json = new JSONObject();
 
@@ -467,359 +1077,567 @@ class DeviceInfo {
 	}
 }
 
-class Event {
-	public String key = null;
-	public Map<String, String> segmentation = null;
-	public int count = 0;
-	public double sum = 0;
-	public int timestamp = 0;
-}
+class CountlyDB extends SQLiteOpenHelper implements EventStore {
 
-class EventQueue {
-	private ArrayList<Event> events_;
-	private CountlyDB countlyDB_;
+	private static final int DATABASE_VERSION = 3;
+	private static final String DATABASE_NAME = "countly";
+	private static final String CONNECTIONS_TABLE_NAME = "CONNECTIONS";
+	private static final String EVENTS_TABLE_NAME = "EVENTS";
+	private static final String CONNECTIONS_TABLE_CREATE = "CREATE TABLE " + CONNECTIONS_TABLE_NAME + " (ID INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, CONNECTION TEXT, RECORD BLOB);";
+	private static final String EVENTS_TABLE_CREATE = "CREATE TABLE " + EVENTS_TABLE_NAME + " (ID INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, KEY TEXT NOT NULL, SEGMENTATION TEXT NOT NULL, COUNT INTEGER NOT NULL, SUM REAL NOT NULL, TIMESTAMP INTEGER NOT NULL, UNIQUE (KEY, SEGMENTATION));";
+	private static final String EVENTS_UPDATE = "UPDATE " + EVENTS_TABLE_NAME + " SET COUNT = ?, SUM = ?, TIMESTAMP = ? WHERE KEY = ? AND SEGMENTATION = ?;";
+	private static final String EVENTS_INSERT = "INSERT INTO " + EVENTS_TABLE_NAME + " (KEY, SEGMENTATION, COUNT, SUM, TIMESTAMP) VALUES (?, ?, ?, ?, ?);";
+
+	private static final String CONNECTIONS_INSERT = "INSERT INTO " + CONNECTIONS_TABLE_NAME + " (CONNECTION, RECORD) VALUES (?, ?);";
+	private static final String CONNECTIONS_DELETE = "DELETE FROM " + CONNECTIONS_TABLE_NAME + " WHERE ID = ?;";
+	private static final String CONNECTIONS_DELETE_UP_TO = "DELETE FROM " + CONNECTIONS_TABLE_NAME + " WHERE ID <= ?;";
+	private static final String EVENTS_DELETE = "DELETE FROM " + EVENTS_TABLE_NAME + " WHERE KEY = ? AND SEGMENTATION = ?;";
+
+	private static final String CONNECTIONS_UPDATE = "UPDATE " + CONNECTIONS_TABLE_NAME + " SET CONNECTION = ?, RECORD = ? WHERE ID = ?;";
+	// Connection is stored either as query string in CONNECTION or as RequestRecord in RECORD, the other one is NULL
+	private static final String CONNECTIONS_DATA = "CONNECTION";
+	private static final String CONNECTIONS_RECORD = "RECORD";
+	private static final String CONNECTIONS_LENGTH = "LENGTH(COALESCE(CONNECTION, RECORD))";
+	// Minimum number of oldest connections dropped at once when queue is full
+	private static final int DROP_CHUNK = 10;
+
+	private final HashMap<String, SQLiteStatement> statements_ = new HashMap<String, SQLiteStatement>();
+
+	private int maxCount_ = 0;
+	private long maxBytes_ = 0;
+	private int overflowPolicy_ = Countly.QUEUE_OVERFLOW_MERGE;
+	// Number of queued connections and their total length, -1 when unknown and needs to be counted
+	private int count_ = -1;
+	private long bytes_ = 0;
+	private long dropped_ = 0;
+	private long merged_ = 0;
+	// Highest ID handed out by peekWindow(), connections up to it may be being sent and are never rewritten
+	private long peekedId_ = 0;
+	// Whether a session update was offered since last merge pass, nothing to merge otherwise
+	private boolean mergeable_ = true;
+	private boolean compact_ = true;
 
-	public EventQueue(CountlyDB countlyDB) {
-		countlyDB_ = countlyDB;
-		events_ = countlyDB_.getEvents();
+	CountlyDB(Context context) {
+		super(context, DATABASE_NAME, null, DATABASE_VERSION);
 	}
 
-	public int size() {
-		synchronized (this) {
-			return events_.size();
-		}
+	@Override
+	public void onCreate(SQLiteDatabase db) {
+		db.execSQL(CONNECTIONS_TABLE_CREATE);
+		db.execSQL(EVENTS_TABLE_CREATE);
 	}
 
-	public String events() {
-		String result = "";
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		if (oldVersion < 2) {
+			// Events used to be stored as a single JSON blob in row with ID = 1, move them to row-per-event table.
+			// Blob could hold several entries of the same event (no segmentation vs. empty one, or repeated
+			// un-segmented recordings), which map to one row now, so they're merged here.
+			LinkedHashMap<EventKey, Event> events = new LinkedHashMap<EventKey, Event>();
+			Cursor cursor = db.query(EVENTS_TABLE_NAME, null, "ID = 1", null, null, null, null);
+
+			if (cursor != null) {
+				if (cursor.moveToFirst()) {
+					try {
+						JSONArray jArray = new JSONObject(cursor.getString(1)).optJSONArray("events");
+						for (int i = 0; jArray != null && i < jArray.length(); i++) {
+							JSONObject json = jArray.optJSONObject(i);
+							Event event = json == null ? null : jsonToEvent(json);
+							if (event == null || event.key == null)
+								continue;
+
+							EventKey key = new EventKey(event.key, event.segmentation);
+							Event existing = events.get(key);
+							if (existing == null) {
+								events.put(key, event);
+							} else {
+								existing.count += event.count;
+								existing.sum += event.sum;
+								existing.timestamp = Math.max(existing.timestamp, event.timestamp);
+							}
+						}
+					} catch (JSONException e) {
+						e.printStackTrace();
+					}
+				}
+				cursor.close();
+			}
 
-		synchronized (this) {
-			JSONArray eventArray = new JSONArray();
+			db.execSQL("DROP TABLE " + EVENTS_TABLE_NAME + ";");
+			db.execSQL(EVENTS_TABLE_CREATE);
 
-			for (int i = 0; i < events_.size(); ++i) {
-				JSONObject json = new JSONObject();
-				Event currEvent = events_.get(i);
+			for (Event event : events.values()) {
+				db.execSQL(EVENTS_INSERT, new Object[]{event.key, SegmentationReader.write(event.segmentation), event.count, event.sum, event.timestamp});
+			}
+		}
 
-				try {
-					json.put("key", currEvent.key);
-					json.put("count", currEvent.count);
-					json.put("sum", currEvent.sum);
-					json.put("timestamp", currEvent.timestamp);
+		if (oldVersion < 3) {
+			// Connections were stored as query strings only, move them to a table which allows records too, keeping IDs
+			String previous = CONNECTIONS_TABLE_NAME + "_V2";
+			db.execSQL("ALTER TABLE " + CONNECTIONS_TABLE_NAME + " RENAME TO " + previous + ";");
+			db.execSQL(CONNECTIONS_TABLE_CREATE);
 
-					if (currEvent.segmentation != null) {
-						json.put("segmentation", new JSONObject(currEvent.segmentation));
-					}
-				} catch (JSONException e) {
-					e.printStackTrace();
-				}
+			SQLiteStatement insert = db.compileStatement("INSERT INTO " + CONNECTIONS_TABLE_NAME + " (ID, CONNECTION, RECORD) VALUES (?, ?, ?);");
+			Cursor cursor = db.query(previous, new String[]{"ID", "CONNECTION"}, null, null, null, null, "ID ASC");
 
-				eventArray.put(json);
+			if (cursor != null) {
+				while (cursor.moveToNext()) {
+					insert.bindLong(1, cursor.getLong(0));
+					bindConnection(insert, 2, cursor.getString(1), RequestRecord.encode(cursor.getString(1)));
+					insert.executeInsert();
+				}
+				cursor.close();
 			}
+			insert.close();
 
-			result = eventArray.toString();
+			db.execSQL("DROP TABLE " + previous + ";");
+		}
+	}
 
-			events_.clear();
-			countlyDB_.clearEvents();
+	/**
+	 * Binds connection data to two consecutive parameters, CONNECTION and RECORD, one of which is always NULL.
+	 */
+	private static void bindConnection(SQLiteStatement statement, int index, String data, byte[] record) {
+		if (record == null) {
+			statement.bindString(index, data);
+			statement.bindNull(index + 1);
+		} else {
+			statement.bindNull(index);
+			statement.bindBlob(index + 1, record);
 		}
+	}
 
-		try {
-			result = java.net.URLEncoder.encode(result, "UTF-8");
-		} catch (UnsupportedEncodingException e) {
+	/**
+	 * Reads connection data from two consecutive columns, CONNECTION and RECORD.
+	 * @return query string or null if stored record can't be decoded
+	 */
+	private static String readConnection(Cursor cursor, int index) {
+		if (!cursor.isNull(index))
+			return cursor.getString(index);
 
-		}
+		return RequestRecord.decode(cursor.getBlob(index + 1));
+	}
 
-		return result;
+	/**
+	 * @return record for given connection or null if it should be stored as plain query string
+	 */
+	private byte[] record(String data) {
+		return compact_ ? RequestRecord.encode(data) : null;
 	}
 
-	public void recordEvent(String key, int count) {
+	public void setCompactStorage(boolean enabled) {
 		synchronized (this) {
-			for (int i = 0; i < events_.size(); ++i) {
-				Event event = events_.get(i);
-
-				if (event.key.equals(key)) {
-					event.count += count;
-					event.timestamp = Math.round((event.timestamp + (System.currentTimeMillis() / 1000)) / 2);
-					countlyDB_.saveEvents(events_);
-					return;
-				}
-			}
+			compact_ = enabled;
+		}
+	}
 
-			Event event = new Event();
-			event.key = key;
-			event.count = count;
-			event.timestamp = Math.round(System.currentTimeMillis() / 1000);
-			events_.add(event);
+	/**
+	 * Returns compiled statement for given SQL, compiling it only on first use.
+	 * Cached statements aren't thread-safe, so callers must hold the lock on this.
+	 */
+	private SQLiteStatement statement(String sql) {
+		SQLiteStatement statement = statements_.get(sql);
+		if (statement == null) {
+			statement = this.getWritableDatabase().compileStatement(sql);
+			statements_.put(sql, statement);
+		}
+		return statement;
+	}
 
-			countlyDB_.saveEvents(events_);
+	@Override
+	public synchronized void close() {
+		for (SQLiteStatement statement : statements_.values()) {
+			statement.close();
 		}
+		statements_.clear();
+		super.close();
 	}
 
-	public void recordEvent(String key, int count, double sum) {
+	/**
+	 * Returns first count connections along with their IDs in the order they were offered,
+	 * so that they could be sent without querying again after each one.
+	 */
+	public ArrayList<Connection> peekWindow(int count) {
 		synchronized (this) {
-			for (int i = 0; i < events_.size(); ++i) {
-				Event event = events_.get(i);
-
-				if (event.key.equals(key)) {
-					event.count += count;
-					event.sum += sum;
-					event.timestamp = Math.round((event.timestamp + (System.currentTimeMillis() / 1000)) / 2);
-					countlyDB_.saveEvents(events_);
-					return;
+			SQLiteDatabase db = this.getReadableDatabase();
+
+			Cursor cursor = db.query(CONNECTIONS_TABLE_NAME, new String[]{"ID", CONNECTIONS_DATA, CONNECTIONS_RECORD}, null, null, null, null, "ID ASC", String.valueOf(count));
+			ArrayList<Connection> connections = new ArrayList<Connection>();
+			ArrayList<Long> unreadable = new ArrayList<Long>();
+
+			if (cursor != null) {
+				while (cursor.moveToNext()) {
+					Connection connection = new Connection();
+					connection.id = cursor.getLong(0);
+					connection.data = readConnection(cursor, 1);
+					peekedId_ = Math.max(peekedId_, connection.id);
+
+					// Unreadable record (e.g. written by newer version) can never be sent
+					if (connection.data == null) {
+						unreadable.add(connection.id);
+						continue;
+					}
+					connections.add(connection);
 				}
+				cursor.close();
 			}
 
-			Event event = new Event();
-			event.key = key;
-			event.count = count;
-			event.sum = sum;
-			event.timestamp = Math.round(System.currentTimeMillis() / 1000);
-			events_.add(event);
+			// Deleted right away, otherwise a window full of them would stall the queue forever
+			if (!unreadable.isEmpty()) {
+				long[] ids = new long[unreadable.size()];
+				for (int i = 0; i < ids.length; i++) {
+					ids[i] = unreadable.get(i);
+				}
+				deleteIds(ids);
+				Log.w("Countly", "Dropped " + ids.length + " unreadable connection(s)");
 
-			countlyDB_.saveEvents(events_);
+				if (connections.isEmpty())
+					return peekWindow(count);
+			}
+
+			return connections;
 		}
 	}
 
-	public void recordEvent(String key, Map<String, String> segmentation, int count) {
+	/**
+	 * Deletes all connections with ID less than or equal to given one, that is all connections offered up to it.
+	 */
+	public void deleteUpTo(long id) {
 		synchronized (this) {
-			for (int i = 0; i < events_.size(); ++i) {
-				Event event = events_.get(i);
-
-				if (event.key.equals(key) && event.segmentation != null && event.segmentation.equals(segmentation)) {
-					event.count += count;
-					event.timestamp = Math.round((event.timestamp + (System.currentTimeMillis() / 1000)) / 2);
-					countlyDB_.saveEvents(events_);
-					return;
-				}
-			}
-
-			Event event = new Event();
-			event.key = key;
-			event.segmentation = segmentation;
-			event.count = count;
-			event.timestamp = Math.round(System.currentTimeMillis() / 1000);
-			events_.add(event);
+			SQLiteStatement delete = statement(CONNECTIONS_DELETE_UP_TO);
+			delete.bindLong(1, id);
+			int deleted = delete.executeUpdateDelete();
+			count_ = -1;
 
-			countlyDB_.saveEvents(events_);
+			Log.d("Countly", "Deleted " + deleted + " from " + CONNECTIONS_TABLE_NAME);
 		}
 	}
 
-	public void recordEvent(String key, Map<String, String> segmentation, int count, double sum) {
+	/**
+	 * Deletes given connections in a single transaction, for connections which aren't a prefix of the queue.
+	 */
+	public void deleteIds(long... ids) {
 		synchronized (this) {
-			for (int i = 0; i < events_.size(); ++i) {
-				Event event = events_.get(i);
-
-				if (event.key.equals(key) && event.segmentation != null && event.segmentation.equals(segmentation)) {
-					event.count += count;
-					event.sum += sum;
-					event.timestamp = Math.round((event.timestamp + (System.currentTimeMillis() / 1000)) / 2);
-					countlyDB_.saveEvents(events_);
-					return;
+			SQLiteDatabase db = this.getWritableDatabase();
+
+			db.beginTransaction();
+			try {
+				SQLiteStatement delete = statement(CONNECTIONS_DELETE);
+				for (long id : ids) {
+					delete.bindLong(1, id);
+					delete.executeUpdateDelete();
 				}
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+				count_ = -1;
 			}
+		}
+	}
 
-			Event event = new Event();
-			event.key = key;
-			event.segmentation = segmentation;
-			event.count = count;
-			event.sum = sum;
-			event.timestamp = Math.round(System.currentTimeMillis() / 1000);
-			events_.add(event);
-
-			countlyDB_.saveEvents(events_);
+	/**
+	 * Limits connections table size. Once offering another connection would exceed any of limits,
+	 * overflow policy decides what to give up.
+	 * @param maxCount maximum number of queued connections, 0 for no limit
+	 * @param maxBytes maximum total size queued connections take in storage, 0 for no limit
+	 * @param overflowPolicy one of Countly.QUEUE_OVERFLOW_* constants
+	 */
+	public void setLimits(int maxCount, long maxBytes, int overflowPolicy) {
+		synchronized (this) {
+			maxCount_ = maxCount;
+			maxBytes_ = maxBytes;
+			overflowPolicy_ = overflowPolicy;
+			count_ = -1;
 		}
 	}
 
-    public void recordPushOpen(String id) {
-        Map<String, String> segmentation = new HashMap<String, String>();
-        segmentation.put("i", id);
-        recordEvent("_push_open", segmentation, 1);
-    }
+	public void offer(String data) {
+		synchronized (this) {
+			insert(data);
+		}
 
-    public void recordPushAction(String id) {
-        Map<String, String> segmentation = new HashMap<String, String>();
-        segmentation.put("i", id);
-        recordEvent("_push_action", segmentation, 1);
-    }
-}
+		Log.d("Countly", "Insert into " + CONNECTIONS_TABLE_NAME + ": " + data);
+	}
 
-class CountlyDB extends SQLiteOpenHelper {
+	/**
+	 * Inserts all connections within single transaction, so that either all of them are queued or none.
+	 */
+	public void offer(List<String> data) {
+		synchronized (this) {
+			SQLiteDatabase db = this.getWritableDatabase();
 
-	private static final int DATABASE_VERSION = 1;
-	private static final String DATABASE_NAME = "countly";
-	private static final String CONNECTIONS_TABLE_NAME = "CONNECTIONS";
-	private static final String EVENTS_TABLE_NAME = "EVENTS";
-	private static final String CONNECTIONS_TABLE_CREATE = "CREATE TABLE " + CONNECTIONS_TABLE_NAME + " (ID INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, CONNECTION TEXT NOT NULL);";
-	private static final String EVENTS_TABLE_CREATE = "CREATE TABLE " + EVENTS_TABLE_NAME + " (ID INTEGER UNIQUE NOT NULL, EVENT TEXT NOT NULL);";
+			db.beginTransaction();
+			try {
+				for (String connection : data) {
+					insert(connection);
+				}
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+		}
 
-	CountlyDB(Context context) {
-		super(context, DATABASE_NAME, null, DATABASE_VERSION);
+		Log.d("Countly", "Insert " + data.size() + " into " + CONNECTIONS_TABLE_NAME);
 	}
 
-	@Override
-	public void onCreate(SQLiteDatabase db) {
-		db.execSQL(CONNECTIONS_TABLE_CREATE);
-		db.execSQL(EVENTS_TABLE_CREATE);
-	}
+	private void insert(String data) {
+		byte[] record = record(data);
+		int length = record == null ? data.length() : record.length;
 
-	@Override
-	public void onUpgrade(SQLiteDatabase db, int arg1, int arg2) {
+		if (!makeRoom(data, length))
+			return;
 
-	}
+		SQLiteStatement insert = statement(CONNECTIONS_INSERT);
+		bindConnection(insert, 1, data, record);
+		insert.executeInsert();
 
-	public String peek() {
-		synchronized (this) {
-			SQLiteDatabase db = this.getReadableDatabase();
+		if (count_ >= 0) {
+			count_++;
+			bytes_ += length;
+		}
+		if (Requests.isSessionUpdate(data))
+			mergeable_ = true;
+	}
 
-			Cursor cursor = db.query(CONNECTIONS_TABLE_NAME, null, null, null, null, null, "ID DESC", "1");
+	/**
+	 * Applies overflow policy if there's no room for another connection.
+	 * @param length size connection takes in storage
+	 * @return false if data shouldn't be inserted
+	 */
+	private boolean makeRoom(String data, int length) {
+		if (maxCount_ <= 0 && maxBytes_ <= 0)
+			return true;
+
+		if (count_ < 0) {
+			Cursor cursor = this.getReadableDatabase().rawQuery("SELECT COUNT(*), TOTAL(" + CONNECTIONS_LENGTH + ") FROM " + CONNECTIONS_TABLE_NAME + ";", null);
+			cursor.moveToFirst();
+			count_ = cursor.getInt(0);
+			bytes_ = cursor.getLong(1);
+			cursor.close();
+		}
 
-			String connection = null;
+		if (fits(length))
+			return true;
 
-			if (cursor != null && cursor.getCount() > 0) {
-				cursor.moveToFirst();
-				connection = cursor.getString(1);
-				Log.d("Countly", "Fetched: " + connection);
-			}
+		if (overflowPolicy_ == Countly.QUEUE_OVERFLOW_DROP_NEWEST || (maxBytes_ > 0 && length > maxBytes_)) {
+			dropped_++;
+			Log.w("Countly", "Queue is full, dropping " + data);
+			return false;
+		}
 
-			return connection;
+		if (overflowPolicy_ == Countly.QUEUE_OVERFLOW_MERGE && mergeable_) {
+			mergeable_ = false;
+			mergeSessionUpdates();
+			if (fits(length))
+				return true;
 		}
-	}
 
-	public String poll() {
-		synchronized (this) {
-			SQLiteDatabase db = this.getReadableDatabase();
+		dropOldest(length);
+		return true;
+	}
 
-			Cursor cursor = db.query(CONNECTIONS_TABLE_NAME, null, null, null, null, null, "ID DESC", "1");
+	private boolean fits(int length) {
+		return (maxCount_ <= 0 || count_ + 1 <= maxCount_) && (maxBytes_ <= 0 || bytes_ + length <= maxBytes_);
+	}
 
-			String connection = null;
+	/**
+	 * Deletes oldest connections until there's room for another one of given length, but no less than
+	 * DROP_CHUNK of them, so that a full queue isn't scanned again on every offer.
+	 */
+	private void dropOldest(int length) {
+		Cursor cursor = this.getReadableDatabase().query(CONNECTIONS_TABLE_NAME, new String[]{"ID", CONNECTIONS_LENGTH}, null, null, null, null, "ID ASC");
+		long lastId = -1;
+		int count = count_;
+		long bytes = bytes_;
+
+		while (count_ - count < DROP_CHUNK || (maxCount_ > 0 && count + 1 > maxCount_) || (maxBytes_ > 0 && bytes + length > maxBytes_)) {
+			if (!cursor.moveToNext())
+				break;
+			lastId = cursor.getLong(0);
+			count--;
+			bytes -= cursor.getLong(1);
+		}
+		cursor.close();
 
-			if (cursor != null && cursor.getCount() > 0) {
-				cursor.moveToFirst();
-				connection = cursor.getString(1);
-				int rawId = Integer.parseInt(cursor.getString(0));
+		if (lastId != -1) {
+			SQLiteStatement delete = statement(CONNECTIONS_DELETE_UP_TO);
+			delete.bindLong(1, lastId);
+			int deleted = delete.executeUpdateDelete();
 
-				SQLiteDatabase writeDb = this.getWritableDatabase();
-				writeDb.execSQL("DELETE FROM " + CONNECTIONS_TABLE_NAME + " WHERE ID = " + rawId + ";");
+			dropped_ += deleted;
+			count_ = count;
+			bytes_ = bytes;
+			Log.w("Countly", "Queue is full, dropped " + deleted + " oldest connection(s)");
+		}
+	}
 
-				Log.d("Countly", "Fetched and deleted: " + connection);
+	/**
+	 * Collapses each run of consecutive session duration updates from the same device with the same dimensions
+	 * into a single update with durations summed up, which loses no data. Same rule as RequestCoalescer uses. Connections already handed out by peekWindow() are
+	 * left alone, they might be sent as they are.
+	 */
+	private void mergeSessionUpdates() {
+		Cursor cursor = this.getReadableDatabase().query(CONNECTIONS_TABLE_NAME, new String[]{"ID", CONNECTIONS_DATA, CONNECTIONS_RECORD, CONNECTIONS_LENGTH},
+				"ID > ?", new String[]{String.valueOf(peekedId_)}, null, null, "ID ASC");
+		SQLiteStatement update = statement(CONNECTIONS_UPDATE);
+		SQLiteStatement delete = statement(CONNECTIONS_DELETE);
+
+		long previousId = -1;
+		String previous = null;
+		long previousLength = 0;
+
+		while (cursor.moveToNext()) {
+			long id = cursor.getLong(0);
+			String data = readConnection(cursor, 1);
+			long length = cursor.getLong(3);
+
+			if (data == null || !Requests.isSessionUpdate(data)) {
+				previous = null;
+				continue;
 			}
 
-			return connection;
-		}
-	}
+			if (previous != null && Requests.sameOrigin(previous, data)) {
+				int duration = Requests.intParam(previous, "session_duration") + Requests.intParam(data, "session_duration");
+				String merged = Requests.setParam(data, "session_duration", String.valueOf(duration));
+				byte[] record = record(merged);
 
-	public void offer(String data) {
-		SQLiteDatabase db = this.getWritableDatabase();
+				bindConnection(update, 1, merged, record);
+				update.bindLong(3, id);
+				update.executeUpdateDelete();
 
-		db.execSQL("INSERT INTO " + CONNECTIONS_TABLE_NAME + "(CONNECTION) VALUES('" + data + "');");
+				delete.bindLong(1, previousId);
+				delete.executeUpdateDelete();
 
-		Log.d("Countly", "Insert into " + CONNECTIONS_TABLE_NAME + ": " + data);
+				merged_++;
+				count_--;
+				data = merged;
+				length = record == null ? merged.length() : record.length;
+				bytes_ += length - cursor.getLong(3) - previousLength;
+			}
+
+			previousId = id;
+			previous = data;
+			previousLength = length;
+		}
+		cursor.close();
 	}
 
-	public boolean isEmpty() {
-		SQLiteDatabase db = this.getReadableDatabase();
-		Cursor cursor = db.query(CONNECTIONS_TABLE_NAME, null, null, null, null, null, "ID DESC", "1");
+	public synchronized long getDropped() {
+		return dropped_;
+	}
 
-		return !(cursor != null && cursor.getCount() > 0);
+	public synchronized long getMerged() {
+		return merged_;
 	}
 
 	// Event related functions
 
 	public ArrayList<Event> getEvents() {
-		SQLiteDatabase db = this.getReadableDatabase();
+		synchronized (this) {
+			SQLiteDatabase db = this.getReadableDatabase();
 
-		Cursor cursor = db.query(EVENTS_TABLE_NAME, null, null, null, null, null, "ID = 1", "1");
-		ArrayList<Event> eventsArray = new ArrayList<Event>();
+			Cursor cursor = db.query(EVENTS_TABLE_NAME, new String[]{"ID", "KEY", "SEGMENTATION", "COUNT", "SUM", "TIMESTAMP"}, null, null, null, null, "ID ASC");
+			ArrayList<Event> eventsArray = new ArrayList<Event>(cursor == null ? 0 : cursor.getCount());
+
+			if (cursor != null) {
+				while (cursor.moveToNext()) {
+					Event event = new Event();
+					event.key = cursor.getString(1);
+					event.segmentation = SegmentationReader.read(cursor.getString(2));
+					event.count = cursor.getInt(3);
+					event.sum = cursor.getDouble(4);
+					event.timestamp = cursor.getInt(5);
+					eventsArray.add(event);
+				}
+				cursor.close();
+			}
 
-		if (cursor != null && cursor.getCount() > 0) {
-			cursor.moveToFirst();
-			String events = cursor.getString(1);
+			return eventsArray;
+		}
+	}
 
-			JSONObject json = new JSONObject();
+	/**
+	 * Writes current state of given events in a single transaction. Each event costs one indexed update
+	 * (plus an insert for new events) regardless of how many events are stored.
+	 */
+	public void saveEvents(Collection<Event> events) {
+		synchronized (this) {
+			SQLiteDatabase db = this.getWritableDatabase();
+			SQLiteStatement update = statement(EVENTS_UPDATE);
+			SQLiteStatement insert = statement(EVENTS_INSERT);
 
+			db.beginTransaction();
 			try {
-				json = new JSONObject(events);
-			} catch (JSONException e) {
-				e.printStackTrace();
-			}
-
-			JSONArray jArray = json.optJSONArray("events");
-
-			if (jArray != null) {
-				for (int i = 0; i < jArray.length(); i++) {
-					try {
-						eventsArray.add(jsonToEvent(new JSONObject(jArray.get(i).toString())));
-					} catch (JSONException e) {
-						e.printStackTrace();
+				for (Event event : events) {
+					String segmentation = SegmentationReader.write(event.segmentation);
+
+					update.bindLong(1, event.count);
+					update.bindDouble(2, event.sum);
+					update.bindLong(3, event.timestamp);
+					update.bindString(4, event.key);
+					update.bindString(5, segmentation);
+
+					if (update.executeUpdateDelete() == 0) {
+						insert.bindString(1, event.key);
+						insert.bindString(2, segmentation);
+						insert.bindLong(3, event.count);
+						insert.bindDouble(4, event.sum);
+						insert.bindLong(5, event.timestamp);
+						insert.executeInsert();
 					}
 				}
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
 			}
 		}
-
-		return eventsArray;
 	}
 
-	public void saveEvents(ArrayList<Event> events) {
-		JSONArray eventArray = new JSONArray();
-		JSONObject json = new JSONObject();
-
-		for (int i = 0; i < events.size(); ++i) {
-			eventArray.put(eventToJSON(events.get(i)));
-		}
-
-		try {
-			json.put("events", eventArray);
-		} catch (JSONException e) {
-			e.printStackTrace();
-		}
-
-		SQLiteDatabase db = this.getWritableDatabase();
-
-		db.execSQL("INSERT OR REPLACE INTO " + EVENTS_TABLE_NAME + "(ID, EVENT) VALUES(1, '" + json.toString() + "');");
-	}
-
-	public void clearEvents() {
-		SQLiteDatabase writeDb = this.getWritableDatabase();
-		writeDb.execSQL("DELETE FROM " + EVENTS_TABLE_NAME + ";");
-	}
-
-	private JSONObject eventToJSON(Event event) {
-		JSONObject json = new JSONObject();
-
-		try {
-			json.put("key", event.key);
-			json.put("count", event.count);
-			json.put("sum", event.sum);
-			json.put("timestamp", event.timestamp);
+	/**
+	 * Removes rows of given events in a single transaction.
+	 */
+	public void deleteEvents(Collection<Event> events) {
+		synchronized (this) {
+			SQLiteDatabase db = this.getWritableDatabase();
+			SQLiteStatement delete = statement(EVENTS_DELETE);
 
-			if (event.segmentation != null) {
-				json.put("segmentation", new JSONObject(event.segmentation));
+			db.beginTransaction();
+			try {
+				for (Event event : events) {
+					delete.bindString(1, event.key);
+					delete.bindString(2, SegmentationReader.write(event.segmentation));
+					delete.executeUpdateDelete();
+				}
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
 			}
-		} catch (JSONException e) {
-			e.printStackTrace();
 		}
-
-		return json;
 	}
 
+
 	private Event jsonToEvent(JSONObject json) {
 		Event event = new Event();
 
 		try {
-			event.key = json.get("key").toString();
-			event.count = Integer.valueOf(json.get("count").toString());
-			event.sum = Double.valueOf(json.get("sum").toString());
-			event.timestamp = Integer.valueOf(json.get("timestamp").toString());
-
-			HashMap<String, String> segmentation = new HashMap<String, String>();
-			@SuppressWarnings("unchecked")
-			Iterator<String> nameItr = ((JSONObject) json.get("segmentation")).keys();
-
-			while (nameItr.hasNext()) {
-				String key = nameItr.next();
-				segmentation.put(key, ((JSONObject) json.get("segmentation")).getString(key));
-			}
+			event.key = json.getString("key");
+			event.count = json.getInt("count");
+			event.sum = json.getDouble("sum");
+			event.timestamp = json.getInt("timestamp");
+
+			JSONObject segmentationJson = json.optJSONObject("segmentation");
+			if (segmentationJson != null) {
+				HashMap<String, String> segmentation = new HashMap<String, String>();
+				@SuppressWarnings("unchecked")
+				Iterator<String> nameItr = segmentationJson.keys();
+
+				while (nameItr.hasNext()) {
+					String key = nameItr.next();
+					segmentation.put(key, segmentationJson.getString(key));
+				}
 
-			event.segmentation = segmentation;
+				event.segmentation = segmentation;
+			}
 		} catch (JSONException e) {
 			e.printStackTrace();
 		}
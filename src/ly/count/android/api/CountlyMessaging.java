@@ -6,7 +6,6 @@ import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.*;
-import android.support.v4.app.NotificationCompat;
 import android.support.v4.content.WakefulBroadcastReceiver;
 import android.util.Log;
 import com.google.android.gms.common.ConnectionResult;
@@ -15,6 +14,10 @@ import com.google.android.gms.gcm.GoogleCloudMessaging;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Countly Messaging
@@ -26,6 +29,8 @@ public class CountlyMessaging extends WakefulBroadcastReceiver {
     private static final String TAG = "CountlyMessaging";
 
     private static final String NOTIFICATION_SHOW_DIALOG = "ly.count.messaging.dialog";
+    static final String NOTIFICATION_SUMMARY = "ly.count.messaging.summary";
+    static final String ACTION_SUMMARY_DISMISSED = "ly.count.messaging.summary.dismissed";
     private static final String EXTRA_MESSAGE = "ly.count.messaging.message";
 
     private static final int NOTIFICATION_TYPE_UNKNOWN  = 0;
@@ -38,71 +43,187 @@ public class CountlyMessaging extends WakefulBroadcastReceiver {
     private static final int NOTIFICATION_TYPE_SOUND_DEFAULT    = 1 << 4;
     private static final int NOTIFICATION_TYPE_SOUND_URI        = 1 << 5;
 
+    /**
+     * Message processing stages for which latency is measured, see {@link #getAverageLatency(int)}.
+     * Queue stage is the time from message arrival till a worker picks it up, parse stage covers parsing,
+     * validation and duplicate check, delivery stage covers broadcast and notification or dialog.
+     */
+    public static final int STAGE_QUEUE    = 0;
+    public static final int STAGE_PARSE    = 1;
+    public static final int STAGE_DELIVERY = 2;
+
+    private static final long[] stageCount = new long[3];
+    private static final long[] stageTotal = new long[3];
+    private static final long[] stageMax = new long[3];
+    private static long collapsedDuplicates;
+    private static volatile long deduplicationTTL = MessageIdStore.DEFAULT_TTL;
+    private static int notificationRate = NotificationScheduler.DEFAULT_RATE;
+    private static NotificationScheduler notificationScheduler;
+
+    /**
+     * Limits how many notifications are posted per minute, 10 by default. Messages above the limit are
+     * shown as lines of a single summary notification instead. Pass 0 to disable the limit.
+     */
+    public static synchronized void setNotificationRate(int perMinute) {
+        notificationRate = perMinute;
+        if (notificationScheduler != null) {
+            notificationScheduler.setRate(perMinute);
+        }
+    }
+
+    private static synchronized NotificationScheduler getNotificationScheduler(Context context) {
+        if (notificationScheduler == null) {
+            notificationScheduler = new NotificationScheduler(context, Clock.ELAPSED);
+            notificationScheduler.setRate(notificationRate);
+        }
+        return notificationScheduler;
+    }
+
+    /**
+     * Message with the same ID as one received within last ttl milliseconds is considered a redelivery
+     * and dropped, even if the app was restarted in between. Default is 7 days.
+     */
+    public static void setDeduplicationTTL(long ttl) {
+        deduplicationTTL = ttl;
+    }
+
+    private static synchronized void recordLatency(int stage, long millis) {
+        stageCount[stage]++;
+        stageTotal[stage] += millis;
+        stageMax[stage] = Math.max(stageMax[stage], millis);
+    }
+
+    private static synchronized void recordDuplicate() {
+        collapsedDuplicates++;
+    }
+
+    /**
+     * @param stage one of STAGE_* constants
+     * @return average time messages spent in given stage, in milliseconds
+     */
+    public static synchronized long getAverageLatency(int stage) {
+        return stageCount[stage] == 0 ? 0 : stageTotal[stage] / stageCount[stage];
+    }
+
+    /**
+     * @param stage one of STAGE_* constants
+     * @return longest time a message spent in given stage, in milliseconds
+     */
+    public static synchronized long getMaxLatency(int stage) {
+        return stageMax[stage];
+    }
+
+    /**
+     * @return number of messages which weren't shown because message with the same ID had already been processed
+     */
+    public static synchronized long getCollapsedDuplicates() {
+        return collapsedDuplicates;
+    }
+
     /**
      * Countly Messaging service message representation.
+     *
+     * Countly fields are read from GCM data once, when message is created, and message never changes after that.
+     * Only those fields and custom data are written to Parcel; GCM service fields aren't, so data bundle of
+     * unparcelled message is rebuilt on first {@link #getData()} call.
      */
-    public static class Message implements Parcelable{
+    public static class Message implements Parcelable {
+        private static final String KEY_ID = "c.i";
+        private static final String KEY_LINK = "c.l";
+        private static final String KEY_REVIEW = "c.r";
+        private static final String KEY_SILENT = "c.s";
+        private static final String KEY_MESSAGE = "message";
+        private static final String KEY_SOUND = "sound";
+
+        private static final int TYPE_UNRESOLVED = -1;
+        // Written first to tell current Parcel layout from the old one, which was a single data bundle
+        // and can still come from PendingIntents created before app update
+        private static final int PARCEL_FORMAT = 0x434D5331;
+
+        private final String id;
+        private final String link;
+        private final String review;
+        private final String message;
+        private final String sound;
+        private final boolean silent;
         private Bundle data;
-        private int type;
+        private int type = TYPE_UNRESOLVED;
 
         public Message(Bundle data) {
             this.data = data;
-            this.type = setType();
+            this.id = data.getString(KEY_ID);
+            this.link = data.getString(KEY_LINK);
+            this.review = data.getString(KEY_REVIEW);
+            this.message = data.getString(KEY_MESSAGE);
+            this.sound = data.getString(KEY_SOUND);
+            this.silent = "true".equals(data.getString(KEY_SILENT));
         }
 
-        public String getId() { return data.getString("c.i"); }
-        public String getLink() { return data.getString("c.l"); }
-        public String getReview() { return data.getString("c.r"); }
-        public String getMessage() { return data.getString("message"); }
-        public String getSoundUri() { return data.getString("sound"); }
-        public Bundle getData() { return data; }
-        public int getType() { return type; }
+        public String getId() { return id; }
+        public String getLink() { return link; }
+        public String getReview() { return review; }
+        public String getMessage() { return message; }
+        public String getSoundUri() { return sound; }
+
+        public synchronized Bundle getData() {
+            if (data == null) {
+                data = new Bundle();
+                putFields(data);
+            }
+            return data;
+        }
+
+        public int getType() {
+            if (type == TYPE_UNRESOLVED) {
+                type = resolveType();
+            }
+            return type;
+        }
 
         /**
          * Depending on message contents, it can represent different types of actions.
          * @return message type according to message contents.
          */
-        private int setType() {
+        private int resolveType() {
             int t = NOTIFICATION_TYPE_UNKNOWN;
 
-            if (getMessage() != null && !"".equals(getMessage())) {
+            if (message != null && !"".equals(message)) {
                 t |= NOTIFICATION_TYPE_MESSAGE;
             }
 
-            if (getLink() != null && !"".equals(getLink())) {
+            if (link != null && !"".equals(link)) {
                 t |= NOTIFICATION_TYPE_URL;
             }
 
-            if (getReview() != null && !"".equals(getReview())) {
+            if (review != null && !"".equals(review)) {
                 t |= NOTIFICATION_TYPE_REVIEW;
             }
 
-            if ("true".equals(data.getString("c.s"))) {
+            if (silent) {
                 t |= NOTIFICATION_TYPE_SILENT;
             }
 
-            if (getSoundUri() != null && !"".equals(getSoundUri())) {
-                if ("default".equals(getSoundUri())) t |= NOTIFICATION_TYPE_SOUND_DEFAULT;
+            if (sound != null && !"".equals(sound)) {
+                if ("default".equals(sound)) t |= NOTIFICATION_TYPE_SOUND_DEFAULT;
                 else t |= NOTIFICATION_TYPE_SOUND_URI;
             }
 
             return t;
         }
 
-        public boolean hasLink() { return (type & NOTIFICATION_TYPE_URL) > 0; }
-        public boolean hasReview() { return (type & NOTIFICATION_TYPE_REVIEW) > 0; }
-        public boolean hasMessage() { return (type & NOTIFICATION_TYPE_MESSAGE) > 0; }
-        public boolean isSilent() { return (type & NOTIFICATION_TYPE_SILENT) > 0; }
-        public boolean hasSoundUri() { return (type & NOTIFICATION_TYPE_SOUND_URI) > 0; }
-        public boolean hasSoundDefault() { return (type & NOTIFICATION_TYPE_SOUND_DEFAULT) > 0; }
-        public boolean isUnknown() { return type == NOTIFICATION_TYPE_UNKNOWN; }
+        public boolean hasLink() { return (getType() & NOTIFICATION_TYPE_URL) > 0; }
+        public boolean hasReview() { return (getType() & NOTIFICATION_TYPE_REVIEW) > 0; }
+        public boolean hasMessage() { return (getType() & NOTIFICATION_TYPE_MESSAGE) > 0; }
+        public boolean isSilent() { return (getType() & NOTIFICATION_TYPE_SILENT) > 0; }
+        public boolean hasSoundUri() { return (getType() & NOTIFICATION_TYPE_SOUND_URI) > 0; }
+        public boolean hasSoundDefault() { return (getType() & NOTIFICATION_TYPE_SOUND_DEFAULT) > 0; }
+        public boolean isUnknown() { return getType() == NOTIFICATION_TYPE_UNKNOWN; }
 
         /**
          * Message is considered valid only when it has Countly ID and its type is determined
          * @return whether this message is valid or not
          */
         public boolean isValid() {
-            String id = data.getString("c.i");
             return !isUnknown() && id != null && id.length() == 24;
         }
 
@@ -146,7 +267,7 @@ public class CountlyMessaging extends WakefulBroadcastReceiver {
 
         @Override
         public String toString() {
-            return data == null ? "empty" : data.toString();
+            return getData().toString();
         }
 
         @Override
@@ -156,11 +277,79 @@ public class CountlyMessaging extends WakefulBroadcastReceiver {
 
         @Override
         public void writeToParcel (Parcel dest, int flags) {
-            dest.writeBundle(data);
+            dest.writeInt(PARCEL_FORMAT);
+            dest.writeString(id);
+            dest.writeString(link);
+            dest.writeString(review);
+            dest.writeString(message);
+            dest.writeString(sound);
+            dest.writeInt(silent ? 1 : 0);
+            dest.writeBundle(customData());
+        }
+
+        /**
+         * @return data other than Countly and GCM service fields, or null if there's none
+         */
+        private Bundle customData() {
+            Bundle data = getData();
+            Bundle custom = null;
+
+            for (String key : data.keySet()) {
+                if (!isCountlyKey(key) && !isServiceKey(key)) {
+                    custom = new Bundle(data);
+                    break;
+                }
+            }
+
+            if (custom != null) {
+                for (String key : data.keySet()) {
+                    if (isCountlyKey(key) || isServiceKey(key)) {
+                        custom.remove(key);
+                    }
+                }
+            }
+
+            return custom;
+        }
+
+        private void putFields(Bundle bundle) {
+            putIfNotNull(bundle, KEY_ID, id);
+            putIfNotNull(bundle, KEY_LINK, link);
+            putIfNotNull(bundle, KEY_REVIEW, review);
+            putIfNotNull(bundle, KEY_MESSAGE, message);
+            putIfNotNull(bundle, KEY_SOUND, sound);
+            if (silent) {
+                bundle.putString(KEY_SILENT, "true");
+            }
+        }
+
+        private static boolean isCountlyKey(String key) {
+            return KEY_ID.equals(key) || KEY_LINK.equals(key) || KEY_REVIEW.equals(key) || KEY_SILENT.equals(key)
+                    || KEY_MESSAGE.equals(key) || KEY_SOUND.equals(key);
+        }
+
+        /**
+         * @return true for fields added by GCM and WakefulBroadcastReceiver, not sent by Countly
+         */
+        private static boolean isServiceKey(String key) {
+            return "from".equals(key) || "collapse_key".equals(key) || key.startsWith("google.") || key.startsWith("android.support.");
+        }
+
+        private static void putIfNotNull(Bundle bundle, String key, String value) {
+            if (value != null) {
+                bundle.putString(key, value);
+            }
         }
         public static final Parcelable.Creator<Message> CREATOR = new Parcelable.Creator<Message>() {
             public Message createFromParcel(Parcel in) {
-                return new Message(in);
+                int start = in.dataPosition();
+                if (in.readInt() == PARCEL_FORMAT) {
+                    return new Message(in);
+                }
+
+                in.setDataPosition(start);
+                Bundle data = in.readBundle();
+                return new Message(data == null ? new Bundle() : data);
             }
 
             public Message[] newArray(int size) {
@@ -169,8 +358,18 @@ public class CountlyMessaging extends WakefulBroadcastReceiver {
         };
 
         private Message(Parcel in) {
+            id = in.readString();
+            link = in.readString();
+            review = in.readString();
+            message = in.readString();
+            sound = in.readString();
+            silent = in.readInt() == 1;
+
+            // Custom data goes first so that Countly fields can be put on top of it in getData()
             data = in.readBundle();
-            type = setType();
+            if (data != null) {
+                putFields(data);
+            }
         }
     }
 
@@ -180,15 +379,65 @@ public class CountlyMessaging extends WakefulBroadcastReceiver {
      * to which you can subscribe via BroadcastReceiver. Note, that
      */
     public static String BROADCAST_RECEIVER_ACTION_MESSAGE = "ly.count.messaging.broadcast.message";
+
+    /**
+     * Values below come from PackageManager, which means IPC to system process. They can only change with
+     * package update, which restarts the process, so they're resolved once per process and kept in memory.
+     */
+    private static boolean broadcastActionResolved;
+    private static String broadcastAction;
+    private static int icon;
+    private static int appVersion = Integer.MIN_VALUE;
+
     public static String getBroadcastAction () {
+        return getBroadcastAction(getContext());
+    }
+
+    static synchronized String getBroadcastAction(Context context) {
+        if (!broadcastActionResolved) {
+            broadcastAction = resolveBroadcastAction(context);
+            broadcastActionResolved = true;
+        }
+        return broadcastAction;
+    }
+
+    /**
+     * Forgets cached values, so that next lookups go to PackageManager again. Only benchmarks need this.
+     */
+    static synchronized void clearConfigCache() {
+        broadcastActionResolved = false;
+        broadcastAction = null;
+        icon = 0;
+        appVersion = Integer.MIN_VALUE;
+    }
+
+    private static String resolveBroadcastAction(Context context) {
         try {
-            ComponentName name = new ComponentName(getContext(), CountlyMessagingService.class);
-            Bundle data = getContext().getPackageManager().getServiceInfo(name, PackageManager.GET_META_DATA).metaData;
-            return data.getString("broadcast_action");
+            ComponentName name = new ComponentName(context, CountlyMessagingService.class);
+            Bundle data = context.getPackageManager().getServiceInfo(name, PackageManager.GET_META_DATA).metaData;
+            if (data != null && data.getString("broadcast_action") != null) {
+                return data.getString("broadcast_action");
+            }
         } catch (PackageManager.NameNotFoundException ignored) {
-            Log.w(TAG, "Set broadcast_action metadata for .CountlyMessaging$CountlyMessagingService in AndroidManifest.xml to receive broadcasts about received messages.");
-            return null;
         }
+        Log.w(TAG, "Set broadcast_action metadata for .CountlyMessaging$CountlyMessagingService in AndroidManifest.xml to receive broadcasts about received messages.");
+        return null;
+    }
+
+    /**
+     * @return application icon or default one
+     */
+    static synchronized int getIcon(Context context) {
+        if (icon == 0) {
+            try {
+                icon = context.getPackageManager().getApplicationInfo(context.getPackageName(), 0).icon;
+            } catch (PackageManager.NameNotFoundException ignored) {
+            }
+            if (icon == 0) {
+                icon = R.drawable.ic_launcher;
+            }
+        }
+        return icon;
     }
 
 
@@ -304,15 +553,18 @@ public class CountlyMessaging extends WakefulBroadcastReceiver {
         return registrationId;
     }
 
-    private static int getAppVersion(Context context) {
-        try {
-            PackageInfo packageInfo = context.getPackageManager()
-                    .getPackageInfo(context.getPackageName(), 0);
-            return packageInfo.versionCode;
-        } catch (PackageManager.NameNotFoundException e) {
-            // should never happen
-            throw new RuntimeException("Could not get package name: " + e);
+    static synchronized int getAppVersion(Context context) {
+        if (appVersion == Integer.MIN_VALUE) {
+            try {
+                PackageInfo packageInfo = context.getPackageManager()
+                        .getPackageInfo(context.getPackageName(), 0);
+                appVersion = packageInfo.versionCode;
+            } catch (PackageManager.NameNotFoundException e) {
+                // should never happen
+                throw new RuntimeException("Could not get package name: " + e);
+            }
         }
+        return appVersion;
     }
 
     private static boolean isAppInForeground (Context context) {
@@ -330,47 +582,152 @@ public class CountlyMessaging extends WakefulBroadcastReceiver {
         return false;
     }
 
-    public static class CountlyMessagingService extends IntentService {
+    /**
+     * Processes received messages on a small pool of worker threads, so that a burst of messages doesn't
+     * queue up behind a single one. Messages with c.i already processed within deduplication TTL are dropped.
+     */
+    public static class CountlyMessagingService extends Service {
         public static final String TAG = "CountlyMessagingService";
 
-        public CountlyMessagingService () {
-            super(TAG);
+        private static final int MAX_WORKERS = 4;
+        private static final int KEEP_ALIVE_SECONDS = 30;
+
+        private static ThreadPoolExecutor workers;
+
+        private GoogleCloudMessaging gcm;
+        private MessageIdStore seenIds;
+
+        // Service is stopped once there are no intents being processed, guarded by lock on this
+        private int pending;
+        private int lastStartId;
+
+        @Override
+        public void onCreate() {
+            super.onCreate();
+            gcm = GoogleCloudMessaging.getInstance(this);
+            seenIds = MessageIdStore.get(this);
         }
 
         @Override
-        protected void onHandleIntent (Intent intent) {
-            Bundle extras = intent.getExtras();
+        public IBinder onBind(Intent intent) {
+            return null;
+        }
 
-            GoogleCloudMessaging gcm = GoogleCloudMessaging.getInstance(this);
-            String messageType = gcm.getMessageType(intent);
+        @Override
+        public int onStartCommand(final Intent intent, int flags, int startId) {
+            final long received = SystemClock.elapsedRealtime();
 
-            if (!extras.isEmpty()) {
-                if (GoogleCloudMessaging.MESSAGE_TYPE_MESSAGE.equals(messageType)) {
-                    final Message msg = new Message(extras);
+            synchronized (this) {
+                pending++;
+                lastStartId = startId;
+            }
 
-                    if (msg.isValid()) {
-                        Log.i(TAG, "Got a message from Countly Messaging: " + msg);
+            workers().execute(new Runnable() {
+                @Override
+                public void run() {
+                    handle(intent, received);
+                }
+            });
 
-                        // Send broadcast
-                        Intent broadcast = new Intent(getBroadcastAction());
-                        broadcast.putExtra(BROADCAST_RECEIVER_ACTION_MESSAGE, msg);
-                        getContext().sendBroadcast(broadcast);
+            return START_NOT_STICKY;
+        }
 
-                        // Show message if not silent
-                        if (msg.isSilent()) {
-                            Countly.sharedInstance().recordMessageOpen(msg.getId());
-                        } else {
-                            // Go through proxy activity to be able to record message open & action performed events
-                            Intent proxy = new Intent(getContext(), ProxyActivity.class);
-                            proxy.putExtra(EXTRA_MESSAGE, msg);
-                            notify(proxy);
-                        }
+        /**
+         * Called once per intent. Last one of a burst posts summary updates held back by throttling. That's done
+         * under the lock onStartCommand() counts intents with, so an intent arriving meanwhile is either counted
+         * before the check and flushes later itself, or starts after this flush.
+         */
+        private synchronized void finished() {
+            if (--pending == 0) {
+                getNotificationScheduler(this).flush();
+                stopSelf(lastStartId);
+            }
+        }
 
+        private static synchronized ThreadPoolExecutor workers() {
+            if (workers == null) {
+                workers = new ThreadPoolExecutor(MAX_WORKERS, MAX_WORKERS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "Countly messaging");
+                        thread.setDaemon(true);
+                        return thread;
                     }
+                });
+                // Let idle workers go away between bursts
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+                    workers.allowCoreThreadTimeOut(true);
                 }
             }
+            return workers;
+        }
+
+        private void handle(Intent intent, long received) {
+            try {
+                if (ACTION_SUMMARY_DISMISSED.equals(intent.getAction())) {
+                    getNotificationScheduler(this).clearSummary();
+                    return;
+                }
 
-            CountlyMessaging.completeWakefulIntent(intent);
+                long started = SystemClock.elapsedRealtime();
+                recordLatency(STAGE_QUEUE, started - received);
+
+                Message msg = parse(intent);
+
+                long parsed = SystemClock.elapsedRealtime();
+                recordLatency(STAGE_PARSE, parsed - started);
+
+                if (msg != null) {
+                    deliver(msg);
+                    recordLatency(STAGE_DELIVERY, SystemClock.elapsedRealtime() - parsed);
+                }
+            } finally {
+                finished();
+                // Device may go to sleep as soon as wake lock is released, so it's held till notifications are posted
+                CountlyMessaging.completeWakefulIntent(intent);
+            }
+        }
+
+        /**
+         * @return valid message not seen within deduplication TTL or null
+         */
+        private Message parse(Intent intent) {
+            Bundle extras = intent.getExtras();
+            if (extras == null || extras.isEmpty() || !GoogleCloudMessaging.MESSAGE_TYPE_MESSAGE.equals(gcm.getMessageType(intent))) {
+                return null;
+            }
+
+            Message msg = new Message(extras);
+            if (!msg.isValid()) {
+                return null;
+            }
+
+            if (!seenIds.markSeen(msg.getId(), deduplicationTTL)) {
+                Log.i(TAG, "Dropping duplicate message " + msg.getId());
+                recordDuplicate();
+                return null;
+            }
+
+            return msg;
+        }
+
+        private void deliver(Message msg) {
+            Log.i(TAG, "Got a message from Countly Messaging: " + msg);
+
+            // Send broadcast
+            Intent broadcast = new Intent(getBroadcastAction());
+            broadcast.putExtra(BROADCAST_RECEIVER_ACTION_MESSAGE, msg);
+            getContext().sendBroadcast(broadcast);
+
+            // Show message if not silent
+            if (msg.isSilent()) {
+                Countly.sharedInstance().recordMessageOpen(msg.getId());
+            } else {
+                // Go through proxy activity to be able to record message open & action performed events
+                Intent proxy = new Intent(getContext(), ProxyActivity.class);
+                proxy.putExtra(EXTRA_MESSAGE, msg);
+                notify(proxy);
+            }
         }
 
         protected void notify(Intent proxy) {
@@ -382,35 +739,10 @@ public class CountlyMessaging extends WakefulBroadcastReceiver {
                 proxy.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
                 startActivity(proxy);
             } else {
-                // Notification case
-                Countly.sharedInstance().recordMessageOpen(msg.getId());
-
-                NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-                PendingIntent contentIntent = PendingIntent.getActivity(getContext(), 0, proxy, 0);
-
-                // Get icon from application or use default one
-                int icon;
-                try {
-                    icon = getPackageManager().getApplicationInfo(getPackageName(), 0).icon;
-                } catch (PackageManager.NameNotFoundException e) {
-                    icon = R.drawable.ic_launcher;
-                }
-
-                NotificationCompat.Builder builder = new NotificationCompat.Builder(this)
-                        .setAutoCancel(true)
-                        .setSmallIcon(icon)
-                        .setTicker(msg.getNotificationMessage())
-                        .setContentTitle(msg.getNotificationTitle())
-                        .setContentText(msg.getNotificationMessage())
-                        .setContentIntent(contentIntent);
-
-                if (msg.hasSoundDefault()) {
-                    builder.setDefaults(Notification.DEFAULT_SOUND);
-                } else if (msg.hasSoundUri()) {
-                    builder.setSound(Uri.parse(msg.getSoundUri()));
+                // Notification case, coalesced messages are reported as opened once summary shows them
+                if (getNotificationScheduler(this).post(msg, proxy)) {
+                    Countly.sharedInstance().recordMessageOpen(msg.getId());
                 }
-
-                manager.notify(1, builder.build());
             }
         }
     }
@@ -434,7 +766,12 @@ public class CountlyMessaging extends WakefulBroadcastReceiver {
             Bundle extras = getIntent().getExtras();
             final Message msg = extras.getParcelable(EXTRA_MESSAGE);
 
-            if (msg != null) {
+            if (extras.getBoolean(NOTIFICATION_SUMMARY)) {
+                // Summary of coalesced messages, just open the app
+                getNotificationScheduler(this).clearSummary();
+                finish();
+                startActivity(new Intent(this, getActivityClass()).setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP));
+            } else if (msg != null) {
                 if (extras.containsKey(NOTIFICATION_SHOW_DIALOG)) {
                     Countly.sharedInstance().recordMessageOpen(msg.getId());
 
@@ -490,7 +827,10 @@ public class CountlyMessaging extends WakefulBroadcastReceiver {
                     builder.create().show();
                 } else {
                     Countly.sharedInstance().recordMessageAction(msg.getId());
-                    startActivity(msg.getIntent());
+                    Intent intent = msg.getIntent();
+                    if (intent != null) {
+                        startActivity(intent);
+                    }
                 }
             }
         }
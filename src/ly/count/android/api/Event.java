@@ -0,0 +1,11 @@
+package ly.count.android.api;
+
+import java.util.Map;
+
+class Event {
+	public String key = null;
+	public Map<String, String> segmentation = null;
+	public int count = 0;
+	public double sum = 0;
+	public int timestamp = 0;
+}
@@ -0,0 +1,44 @@
+package ly.count.android.api;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Aggregation key of an event: event key plus segmentation, compared regardless of segmentation order.
+ * Hash is computed once, so looking an aggregate up is O(segmentation size) no matter how many aggregates there are.
+ */
+class EventKey {
+	public final String key;
+	public final Map<String, String> segmentation;
+	private final int hash_;
+
+	public EventKey(String key, Map<String, String> segmentation) {
+		this.key = key;
+		this.segmentation = segmentation == null || segmentation.isEmpty() ? null : segmentation;
+		hash_ = 31 * key.hashCode() + (this.segmentation == null ? 0 : this.segmentation.hashCode());
+	}
+
+	/**
+	 * @return key with its own sorted copy of segmentation, safe to keep after caller modifies its map
+	 */
+	public EventKey freeze() {
+		return segmentation == null ? this : new EventKey(key, new TreeMap<String, String>(segmentation));
+	}
+
+	@Override
+	public int hashCode() {
+		return hash_;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o)
+			return true;
+		if (!(o instanceof EventKey))
+			return false;
+
+		EventKey other = (EventKey) o;
+		return hash_ == other.hash_ && key.equals(other.key)
+				&& (segmentation == null ? other.segmentation == null : segmentation.equals(other.segmentation));
+	}
+}
@@ -0,0 +1,155 @@
+package ly.count.android.api;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Aggregates recorded events in memory. Recording never blocks on other recordings of different events,
+ * on serialization or on disk: aggregates live in a concurrent map and each one is only locked for
+ * the few field updates it takes to add a recording to it.
+ *
+ * Flushing atomically swaps the whole generation of aggregates for an empty one, waits for recordings
+ * which already started on the old generation to finish, and only then serializes it.
+ */
+class EventQueue {
+	private final AtomicReference<Generation> generation_ = new AtomicReference<Generation>(new Generation());
+	private EventStore store_;
+	private EventWriteBuffer buffer_;
+	private final Clock clock_;
+
+	private static class Generation {
+		final ConcurrentHashMap<EventKey, Event> events = new ConcurrentHashMap<EventKey, Event>();
+		// Number of recordings in progress, no new ones start once generation is sealed
+		final AtomicInteger writers = new AtomicInteger();
+		volatile boolean sealed = false;
+	}
+
+	public EventQueue(EventStore store) {
+		this(store, Clock.SYSTEM);
+	}
+
+	EventQueue(EventStore store, Clock clock) {
+		store_ = store;
+		clock_ = clock;
+		for (Event event : store_.getEvents()) {
+			EventKey key = new EventKey(event.key, event.segmentation);
+			generation_.get().events.put(key, event);
+		}
+		buffer_ = new EventWriteBuffer(store_);
+	}
+
+	public EventWriteBuffer getBuffer() {
+		return buffer_;
+	}
+
+	public int size() {
+		return generation_.get().events.size();
+	}
+
+	/**
+	 * @return URL-encoded JSON array of all recorded events, which are removed from the queue, or null if there were none
+	 */
+	public String events() {
+		Generation generation = generation_.getAndSet(new Generation());
+		generation.sealed = true;
+
+		while (generation.writers.get() != 0) {
+			Thread.yield();
+		}
+
+		Collection<Event> events = generation.events.values();
+		if (events.isEmpty())
+			return null;
+
+		String result = EventWriter.write(events);
+
+		buffer_.clear(events);
+
+		// Aggregates with the same keys recorded since the swap share storage rows with the cleared ones, write them again
+		for (Event event : generation_.get().events.values()) {
+			synchronized (event) {
+				buffer_.put(event);
+			}
+		}
+
+		return result;
+	}
+
+	public void recordEvent(String key, int count) {
+		recordEvent(key, null, count, 0);
+	}
+
+	public void recordEvent(String key, int count, double sum) {
+		recordEvent(key, null, count, sum);
+	}
+
+	public void recordEvent(String key, Map<String, String> segmentation, int count) {
+		recordEvent(key, segmentation, count, 0);
+	}
+
+	public void recordEvent(String key, Map<String, String> segmentation, int count, double sum) {
+		EventKey eventKey = new EventKey(key, segmentation);
+		int timestamp = (int) (clock_.currentTimeMillis() / 1000);
+
+		while (true) {
+			Generation generation = generation_.get();
+
+			generation.writers.incrementAndGet();
+			try {
+				// Swapped out in between, record into the new one
+				if (generation.sealed)
+					continue;
+
+				record(generation.events, eventKey, count, sum, timestamp);
+				return;
+			} finally {
+				generation.writers.decrementAndGet();
+			}
+		}
+	}
+
+	private void record(ConcurrentHashMap<EventKey, Event> events, EventKey eventKey, int count, double sum, int timestamp) {
+		Event event = events.get(eventKey);
+		Event created = null;
+
+		if (event == null) {
+			eventKey = eventKey.freeze();
+
+			created = new Event();
+			created.key = eventKey.key;
+			created.segmentation = eventKey.segmentation;
+			created.timestamp = timestamp;
+
+			event = events.putIfAbsent(eventKey, created);
+			if (event == null) {
+				event = created;
+			}
+		}
+
+		synchronized (event) {
+			event.count += count;
+			event.sum += sum;
+			// Created aggregate already has this timestamp. Sum is long, two of today's timestamps add up to more than int holds
+			if (event != created)
+				event.timestamp = (int) ((event.timestamp + (long) timestamp) / 2);
+
+			buffer_.put(event);
+		}
+	}
+
+    public void recordPushOpen(String id) {
+        Map<String, String> segmentation = new HashMap<String, String>();
+        segmentation.put("i", id);
+        recordEvent("_push_open", segmentation, 1);
+    }
+
+    public void recordPushAction(String id) {
+        Map<String, String> segmentation = new HashMap<String, String>();
+        segmentation.put("i", id);
+        recordEvent("_push_action", segmentation, 1);
+    }
+}
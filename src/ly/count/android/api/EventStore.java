@@ -0,0 +1,24 @@
+package ly.count.android.api;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Persistent storage of event aggregates, one row per event key and segmentation. Implemented by CountlyDB.
+ */
+interface EventStore {
+	/**
+	 * @return all stored events in the order they were first saved
+	 */
+	List<Event> getEvents();
+
+	/**
+	 * Writes current state of given events, inserting the ones which aren't stored yet.
+	 */
+	void saveEvents(Collection<Event> events);
+
+	/**
+	 * Removes given events.
+	 */
+	void deleteEvents(Collection<Event> events);
+}
@@ -0,0 +1,165 @@
+package ly.count.android.api;
+
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Write-behind buffer in front of events storage.
+ *
+ * Recording an event only puts a copy of its current state into in-memory map, replacing any previous
+ * not yet committed state of the same event. EventQueue keeps a single Event instance per aggregate,
+ * so pending states are keyed by instance identity. Pending states are written to storage in a single transaction
+ * on a background thread once maxDelay milliseconds passed since first pending mutation or once there are
+ * maxMutations pending mutations, whichever comes first. Thus a crash loses at most that window of events.
+ */
+class EventWriteBuffer {
+	static final long DEFAULT_MAX_DELAY = 2 * 1000;
+	static final int DEFAULT_MAX_MUTATIONS = 50;
+
+	private final EventStore store_;
+	private final Object commitLock_ = new Object();
+	private ScheduledExecutorService executor_;
+	private final Runnable committer_ = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (EventWriteBuffer.this) {
+				scheduled_ = false;
+			}
+			commit();
+		}
+	};
+
+	private IdentityHashMap<Event, Event> pending_ = new IdentityHashMap<Event, Event>();
+	private int mutations_ = 0;
+	private boolean scheduled_ = false;
+	private long maxDelay_ = DEFAULT_MAX_DELAY;
+	private int maxMutations_ = DEFAULT_MAX_MUTATIONS;
+
+	private long commits_ = 0;
+	private long coalesced_ = 0;
+
+	EventWriteBuffer(EventStore store) {
+		store_ = store;
+	}
+
+	/**
+	 * @param maxDelay maximum time in milliseconds mutation can stay in memory
+	 * @param maxMutations maximum number of mutations to keep in memory, 1 commits right after every mutation
+	 */
+	public synchronized void setDurability(long maxDelay, int maxMutations) {
+		maxDelay_ = maxDelay;
+		maxMutations_ = maxMutations;
+	}
+
+	/**
+	 * Remembers current state of event to be written later. Doesn't touch disk.
+	 */
+	public void put(Event event) {
+		Event copy = new Event();
+		copy.key = event.key;
+		copy.segmentation = event.segmentation;
+		copy.count = event.count;
+		copy.sum = event.sum;
+		copy.timestamp = event.timestamp;
+
+		synchronized (this) {
+			if (pending_.put(event, copy) != null)
+				coalesced_++;
+			mutations_++;
+
+			if (mutations_ >= maxMutations_) {
+				schedule(0);
+			} else if (!scheduled_) {
+				schedule(maxDelay_);
+			}
+		}
+	}
+
+	/**
+	 * Writes all pending mutations to storage in a single transaction on the calling thread.
+	 */
+	public void commit() {
+		synchronized (commitLock_) {
+			Map<Event, Event> pending;
+			synchronized (this) {
+				pending = pending_;
+				pending_ = new IdentityHashMap<Event, Event>();
+				mutations_ = 0;
+			}
+
+			if (pending.isEmpty())
+				return;
+
+			store_.saveEvents(pending.values());
+
+			synchronized (this) {
+				commits_++;
+			}
+			Log.d("Countly", "Committed " + pending.size() + " event(s)");
+		}
+	}
+
+	/**
+	 * Drops pending mutations of given events and removes them from storage, called once events are sent.
+	 */
+	public void clear(Collection<Event> events) {
+		synchronized (commitLock_) {
+			synchronized (this) {
+				for (Event event : events) {
+					pending_.remove(event);
+				}
+			}
+			store_.deleteEvents(events);
+		}
+	}
+
+	/**
+	 * Commits pending mutations and lets writer thread exit once commits already scheduled have run.
+	 * Next mutation starts a new one.
+	 */
+	public void shutdown() {
+		commit();
+
+		synchronized (this) {
+			if (executor_ != null) {
+				executor_.shutdown();
+				executor_ = null;
+			}
+			scheduled_ = false;
+		}
+	}
+
+	public synchronized long getCommits() {
+		return commits_;
+	}
+
+	/**
+	 * @return number of mutations which didn't result in separate writes because the same event was updated again before commit
+	 */
+	public synchronized long getCoalesced() {
+		return coalesced_;
+	}
+
+	private void schedule(long delay) {
+		if (executor_ == null) {
+			executor_ = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "Countly event writer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+
+		scheduled_ = true;
+		executor_.schedule(committer_, delay, TimeUnit.MILLISECONDS);
+	}
+}
@@ -0,0 +1,198 @@
+package ly.count.android.api;
+
+import java.util.Map;
+
+/**
+ * Serializes events straight into URL-encoded JSON array, the form they're sent in.
+ *
+ * Unlike building JSONObject per event, then JSONArray, then calling toString() and URLEncoder.encode(),
+ * this writes every character once into the output buffer: JSON escaping and percent-encoding are done
+ * inline and numbers are appended without boxing. Strings are escaped and numbers formatted exactly the way
+ * Android's org.json writes them and percent-encoding is URLEncoder's, so output can only differ from URL-encoded
+ * JSONArray.toString() in key order, which JSON doesn't define and JSONObject changed between Android versions.
+ */
+class EventWriter {
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+	// JSONStringer escapes control characters with lowercase hex digits, percent-encoding uses uppercase ones
+	private static final char[] LOWER_HEX = "0123456789abcdef".toCharArray();
+
+	private final StringBuilder out_;
+
+	EventWriter(StringBuilder out) {
+		out_ = out;
+	}
+
+	static String write(Iterable<Event> events) {
+		StringBuilder out = new StringBuilder(256);
+		EventWriter writer = new EventWriter(out);
+
+		writer.raw('[');
+		boolean first = true;
+		for (Event event : events) {
+			if (!first)
+				writer.raw(',');
+			writer.write(event);
+			first = false;
+		}
+		writer.raw(']');
+
+		return out.toString();
+	}
+
+	void write(Event event) {
+		raw('{');
+		string("key");
+		raw(':');
+		string(event.key);
+		raw(',');
+		string("count");
+		raw(':');
+		out_.append(event.count);
+		raw(',');
+		string("sum");
+		raw(':');
+		number(event.sum);
+		raw(',');
+		string("timestamp");
+		raw(':');
+		out_.append(event.timestamp);
+
+		if (event.segmentation != null) {
+			raw(',');
+			string("segmentation");
+			raw(':');
+			raw('{');
+			boolean first = true;
+			for (Map.Entry<String, String> entry : event.segmentation.entrySet()) {
+				if (!first)
+					raw(',');
+				string(entry.getKey());
+				raw(':');
+				string(entry.getValue());
+				first = false;
+			}
+			raw('}');
+		}
+
+		raw('}');
+	}
+
+	private void number(double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value))
+			out_.append('0');
+		else if (value == 0 && 1 / value < 0)
+			out_.append("-0");
+		else if (value == (long) value)
+			out_.append((long) value);
+		else
+			out_.append(value);
+	}
+
+	/**
+	 * Writes JSON structural character, percent-encoded.
+	 */
+	private void raw(char c) {
+		encode(c);
+	}
+
+	/**
+	 * Writes quoted and escaped JSON string, percent-encoded.
+	 */
+	private void string(String value) {
+		if (value == null) {
+			out_.append("null");
+			return;
+		}
+
+		encode('"');
+
+		int length = value.length();
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+
+			switch (c) {
+				case '"':
+				case '\\':
+				case '/':
+					encode('\\');
+					encode(c);
+					break;
+				case '\n':
+					encode('\\');
+					encode('n');
+					break;
+				case '\r':
+					encode('\\');
+					encode('r');
+					break;
+				case '\t':
+					encode('\\');
+					encode('t');
+					break;
+				case '\b':
+					encode('\\');
+					encode('b');
+					break;
+				case '\f':
+					encode('\\');
+					encode('f');
+					break;
+				default:
+					if (c < 0x20) {
+						encode('\\');
+						encode('u');
+						encode('0');
+						encode('0');
+						encode(LOWER_HEX[(c >> 4) & 0xF]);
+						encode(LOWER_HEX[c & 0xF]);
+					} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+						encodeCodePoint(Character.toCodePoint(c, value.charAt(++i)));
+					} else {
+						encodeCodePoint(c);
+					}
+			}
+		}
+
+		encode('"');
+	}
+
+	/**
+	 * Percent-encodes ASCII character the same way URLEncoder does.
+	 */
+	private void encode(char c) {
+		if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '.' || c == '-' || c == '*' || c == '_') {
+			out_.append(c);
+		} else if (c == ' ') {
+			out_.append('+');
+		} else {
+			percent(c);
+		}
+	}
+
+	private void encodeCodePoint(int codePoint) {
+		if (codePoint < 0x80) {
+			encode((char) codePoint);
+		} else if (codePoint < 0x800) {
+			percent(0xC0 | (codePoint >> 6));
+			percent(0x80 | (codePoint & 0x3F));
+		} else if (codePoint < 0x10000) {
+			if (codePoint >= 0xD800 && codePoint <= 0xDFFF) {
+				// Unpaired surrogate, URLEncoder replaces it with '?'
+				percent('?');
+				return;
+			}
+			percent(0xE0 | (codePoint >> 12));
+			percent(0x80 | ((codePoint >> 6) & 0x3F));
+			percent(0x80 | (codePoint & 0x3F));
+		} else {
+			percent(0xF0 | (codePoint >> 18));
+			percent(0x80 | ((codePoint >> 12) & 0x3F));
+			percent(0x80 | ((codePoint >> 6) & 0x3F));
+			percent(0x80 | (codePoint & 0x3F));
+		}
+	}
+
+	private void percent(int b) {
+		out_.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+	}
+}
@@ -0,0 +1,124 @@
+package ly.count.android.api;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Persistent set of recently processed Countly Messaging message IDs, used to drop redelivered messages.
+ *
+ * All IDs seen within TTL are kept in memory in order they were seen, so checking an ID is a single hash lookup.
+ * SQLite is only touched to load IDs once per process and to remember a new ID. Number of remembered IDs is
+ * bounded, the oldest ones are forgotten first.
+ */
+class MessageIdStore extends SQLiteOpenHelper {
+    static final long DEFAULT_TTL = 7L * 24 * 60 * 60 * 1000;
+    static final int MAX_IDS = 1000;
+
+    private static final int DATABASE_VERSION = 1;
+    private static final String DATABASE_NAME = "countly_messages";
+    private static final String TABLE_NAME = "SEEN";
+    private static final String TABLE_CREATE = "CREATE TABLE " + TABLE_NAME + " (ID TEXT PRIMARY KEY NOT NULL, SEEN_AT INTEGER NOT NULL);";
+    private static final String INSERT = "INSERT OR REPLACE INTO " + TABLE_NAME + " (ID, SEEN_AT) VALUES (?, ?);";
+    private static final String DELETE_OLDER = "DELETE FROM " + TABLE_NAME + " WHERE SEEN_AT < ?;";
+    private static final String DELETE_OVERFLOW = "DELETE FROM " + TABLE_NAME + " WHERE ID NOT IN (SELECT ID FROM " + TABLE_NAME + " ORDER BY SEEN_AT DESC LIMIT " + MAX_IDS + ");";
+
+    private static MessageIdStore instance;
+
+    // Message ID -> time it was seen, oldest first
+    private final LinkedHashMap<String, Long> seen = new LinkedHashMap<String, Long>();
+    private SQLiteStatement insert;
+    private boolean loaded;
+    private final Clock clock;
+
+    static synchronized MessageIdStore get(Context context) {
+        if (instance == null) {
+            instance = new MessageIdStore(context.getApplicationContext(), Clock.SYSTEM);
+        }
+        return instance;
+    }
+
+    MessageIdStore(Context context, Clock clock) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this.clock = clock;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL(TABLE_CREATE);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    }
+
+    /**
+     * Remembers message ID.
+     * @param ttl how long message ID is remembered, in milliseconds
+     * @return true if this ID wasn't seen within TTL, that is message should be processed
+     */
+    public synchronized boolean markSeen(String id, long ttl) {
+        load(ttl);
+
+        long now = clock.currentTimeMillis();
+        Long seenAt = seen.get(id);
+        if (seenAt != null && seenAt >= now - ttl) {
+            return false;
+        }
+
+        // Re-inserted to move it to the end, as the most recently seen one
+        seen.remove(id);
+        seen.put(id, now);
+        forget(now, ttl);
+
+        insert.bindString(1, id);
+        insert.bindLong(2, now);
+        insert.executeInsert();
+
+        return true;
+    }
+
+    /**
+     * Loads IDs seen within TTL, dropping expired and excess rows first.
+     */
+    private void load(long ttl) {
+        if (loaded) {
+            return;
+        }
+
+        SQLiteDatabase db = getWritableDatabase();
+        db.execSQL(DELETE_OLDER, new Object[]{clock.currentTimeMillis() - ttl});
+        db.execSQL(DELETE_OVERFLOW);
+
+        Cursor cursor = db.query(TABLE_NAME, new String[]{"ID", "SEEN_AT"}, null, null, null, null, "SEEN_AT ASC");
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                seen.put(cursor.getString(0), cursor.getLong(1));
+            }
+            cursor.close();
+        }
+
+        insert = db.compileStatement(INSERT);
+        loaded = true;
+    }
+
+    /**
+     * Forgets IDs which expired or don't fit in memory anymore. Rows stay in SQLite till next load.
+     */
+    private void forget(long now, long ttl) {
+        Iterator<Map.Entry<String, Long>> iterator = seen.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Long> oldest = iterator.next();
+            if (seen.size() <= MAX_IDS && oldest.getValue() >= now - ttl) {
+                break;
+            }
+            iterator.remove();
+        }
+    }
+}
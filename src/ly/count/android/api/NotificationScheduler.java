@@ -0,0 +1,191 @@
+package ly.count.android.api;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.support.v4.app.NotificationCompat;
+
+import java.util.LinkedList;
+
+/**
+ * Posts Countly Messaging notifications, each message under its own notification ID.
+ *
+ * Posting is limited by a token bucket of rate notifications per minute. Messages arriving when the bucket is
+ * empty don't get notifications of their own: they're coalesced into a standalone summary notification listing
+ * the latest of them. Summary is posted right away for the first coalesced message, further updates are posted
+ * at most once per token refill period, and whatever is left is posted by {@link #flush()} once the burst is over.
+ * Everything is posted synchronously by the calling service worker, never after the service is gone.
+ */
+class NotificationScheduler {
+    static final int DEFAULT_RATE = 10;
+    // The one all messages used to be posted with
+    static final int SUMMARY_ID = 1;
+
+    private static final int SUMMARY_LINES = 5;
+
+    private static class Line {
+        final String id;
+        final String text;
+        boolean shown;
+
+        Line(String id, String text) {
+            this.id = id;
+            this.text = text;
+        }
+    }
+
+    private final Context context;
+    private final Clock clock;
+
+    private int rate = DEFAULT_RATE;
+    private double tokens = DEFAULT_RATE;
+    private long refilledAt;
+
+    // Messages coalesced into summary: latest lines, newest first, and total count
+    private final LinkedList<Line> summaryLines = new LinkedList<Line>();
+    private int summaryCount;
+    // Whether summary has changes which weren't posted yet and when it was posted last, 0 if it isn't shown
+    private boolean summaryChanged;
+    private long summaryPostedAt;
+
+    NotificationScheduler(Context context, Clock clock) {
+        this.context = context.getApplicationContext();
+        this.clock = clock;
+        this.refilledAt = clock.currentTimeMillis();
+    }
+
+    /**
+     * @param perMinute maximum number of notifications posted per minute, 0 for no limit
+     */
+    synchronized void setRate(int perMinute) {
+        rate = perMinute;
+        tokens = Math.min(tokens, perMinute);
+    }
+
+    /**
+     * Posts notification for message or adds message to summary if rate limit is reached.
+     * @param proxy intent to be started when notification is tapped
+     * @return true if notification was posted, false if message was coalesced into summary
+     */
+    synchronized boolean post(CountlyMessaging.Message msg, Intent proxy) {
+        if (!tryAcquire()) {
+            coalesce(msg);
+            return false;
+        }
+
+        int id = notificationId(msg);
+        PendingIntent contentIntent = PendingIntent.getActivity(context, id, proxy, PendingIntent.FLAG_UPDATE_CURRENT);
+
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(context)
+                .setAutoCancel(true)
+                .setSmallIcon(CountlyMessaging.getIcon(context))
+                .setTicker(msg.getNotificationMessage())
+                .setContentTitle(msg.getNotificationTitle())
+                .setContentText(msg.getNotificationMessage())
+                .setContentIntent(contentIntent);
+
+        if (msg.hasSoundDefault()) {
+            builder.setDefaults(Notification.DEFAULT_SOUND);
+        } else if (msg.hasSoundUri()) {
+            builder.setSound(Uri.parse(msg.getSoundUri()));
+        }
+
+        manager().notify(id, builder.build());
+        return true;
+    }
+
+    /**
+     * Posts summary changes held back by throttling.
+     */
+    synchronized void flush() {
+        if (summaryChanged) {
+            postSummary();
+        }
+    }
+
+    /**
+     * Forgets coalesced messages once summary is opened or dismissed.
+     */
+    synchronized void clearSummary() {
+        summaryLines.clear();
+        summaryCount = 0;
+        summaryChanged = false;
+        summaryPostedAt = 0;
+    }
+
+    private boolean tryAcquire() {
+        if (rate <= 0) {
+            return true;
+        }
+
+        long now = clock.currentTimeMillis();
+        tokens = Math.min(rate, tokens + (now - refilledAt) * rate / 60000.0);
+        refilledAt = now;
+
+        if (tokens >= 1) {
+            tokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    private void coalesce(CountlyMessaging.Message msg) {
+        summaryLines.addFirst(new Line(msg.getId(), msg.getNotificationMessage()));
+        if (summaryLines.size() > SUMMARY_LINES) {
+            summaryLines.removeLast();
+        }
+        summaryCount++;
+        summaryChanged = true;
+
+        if (summaryPostedAt == 0 || clock.currentTimeMillis() - summaryPostedAt >= 60000 / rate) {
+            postSummary();
+        }
+    }
+
+    private void postSummary() {
+        String title = context.getResources().getQuantityString(R.plurals.countly_messaging_summary, summaryCount, summaryCount);
+
+        NotificationCompat.InboxStyle style = new NotificationCompat.InboxStyle().setBigContentTitle(title);
+        for (Line line : summaryLines) {
+            style.addLine(line.text);
+        }
+
+        Intent open = new Intent(context, CountlyMessaging.ProxyActivity.class).putExtra(CountlyMessaging.NOTIFICATION_SUMMARY, true);
+        Intent dismiss = new Intent(context, CountlyMessaging.CountlyMessagingService.class).setAction(CountlyMessaging.ACTION_SUMMARY_DISMISSED);
+
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(context)
+                .setAutoCancel(true)
+                .setOnlyAlertOnce(true)
+                .setSmallIcon(CountlyMessaging.getIcon(context))
+                .setContentTitle(context.getString(R.string.app_name))
+                .setContentText(title)
+                .setNumber(summaryCount)
+                .setStyle(style)
+                .setContentIntent(PendingIntent.getActivity(context, SUMMARY_ID, open, PendingIntent.FLAG_UPDATE_CURRENT))
+                .setDeleteIntent(PendingIntent.getService(context, SUMMARY_ID, dismiss, PendingIntent.FLAG_UPDATE_CURRENT));
+
+        manager().notify(SUMMARY_ID, builder.build());
+        summaryChanged = false;
+        summaryPostedAt = Math.max(1, clock.currentTimeMillis());
+
+        // Only messages which made it into summary lines were actually shown
+        for (Line line : summaryLines) {
+            if (!line.shown) {
+                line.shown = true;
+                Countly.sharedInstance().recordMessageOpen(line.id);
+            }
+        }
+    }
+
+    private NotificationManager manager() {
+        return (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+    }
+
+    private static int notificationId(CountlyMessaging.Message msg) {
+        int id = msg.getId().hashCode();
+        return id == SUMMARY_ID ? id + 1 : id;
+    }
+}
@@ -0,0 +1,117 @@
+package ly.count.android.api;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Merges adjacent queued requests before upload: consecutive session duration updates are summed up
+ * and consecutive event batches are concatenated into one events array, as long as both requests come
+ * from the same device with the same dimensions. Requests which begin or end session, or carry a push
+ * token, are never merged, so session boundaries stay where they were.
+ *
+ * Merged connection has ID of the last row it covers, so deleting everything up to that ID once it's sent
+ * removes all rows it was made of.
+ */
+class RequestCoalescer {
+	private static final int TYPE_OTHER = 0;
+	private static final int TYPE_SESSION_UPDATE = 1;
+	private static final int TYPE_EVENTS = 2;
+
+	// Don't grow requests beyond length most servers accept in GET query string
+	static final int MAX_LENGTH = 7 * 1024;
+
+	// Encoded JSON array brackets and comma as produced by URLEncoder
+	private static final String ARRAY_START = "%5B";
+	private static final String ARRAY_END = "%5D";
+	private static final String ARRAY_SEPARATOR = "%2C";
+
+	private long requestsSaved_ = 0;
+	private long bytesSaved_ = 0;
+
+	public ArrayList<Connection> coalesce(List<Connection> connections) {
+		ArrayList<Connection> result = new ArrayList<Connection>(connections.size());
+		Connection previous = null;
+		int previousType = TYPE_OTHER;
+
+		for (Connection connection : connections) {
+			int type = typeOf(connection.data);
+
+			if (previous != null && type != TYPE_OTHER && type == previousType && Requests.sameOrigin(previous.data, connection.data)) {
+				String merged = type == TYPE_SESSION_UPDATE ? mergeSessionUpdates(previous.data, connection.data) : mergeEvents(previous.data, connection.data);
+
+				if (merged != null && merged.length() <= MAX_LENGTH) {
+					Connection combined = new Connection();
+					combined.id = connection.id;
+					combined.data = merged;
+					combined.merged = previous.merged + connection.merged + 1;
+					combined.saved = previous.saved + connection.saved + previous.data.length() + connection.data.length() - merged.length();
+
+					result.set(result.size() - 1, combined);
+					previous = combined;
+					continue;
+				}
+			}
+
+			result.add(connection);
+			previous = connection;
+			previousType = type;
+		}
+
+		return result;
+	}
+
+	/**
+	 * Accounts savings of merged connection once it's actually delivered.
+	 */
+	public synchronized void sent(Connection connection) {
+		requestsSaved_ += connection.merged;
+		bytesSaved_ += connection.saved;
+	}
+
+	public synchronized long getRequestsSaved() {
+		return requestsSaved_;
+	}
+
+	public synchronized long getBytesSaved() {
+		return bytesSaved_;
+	}
+
+	private static int typeOf(String data) {
+		if (Requests.isSessionUpdate(data))
+			return TYPE_SESSION_UPDATE;
+
+		if (Requests.param(data, "events") != null && Requests.param(data, "session_duration") == null
+				&& Requests.param(data, "begin_session") == null && Requests.param(data, "end_session") == null
+				&& Requests.param(data, "token_session") == null)
+			return TYPE_EVENTS;
+
+		return TYPE_OTHER;
+	}
+
+	/**
+	 * Later request is kept as is (with its timestamp), only its duration grows.
+	 */
+	private static String mergeSessionUpdates(String a, String b) {
+		int duration = Requests.intParam(a, "session_duration") + Requests.intParam(b, "session_duration");
+		return Requests.setParam(b, "session_duration", String.valueOf(duration));
+	}
+
+	/**
+	 * Concatenates encoded JSON arrays without decoding them. Each event carries its own timestamp,
+	 * so request timestamp of the later one is kept.
+	 */
+	private static String mergeEvents(String a, String b) {
+		String eventsA = Requests.param(a, "events");
+		String eventsB = Requests.param(b, "events");
+
+		if (!isNonEmptyArray(eventsA) || !isNonEmptyArray(eventsB))
+			return null;
+
+		String events = eventsA.substring(0, eventsA.length() - ARRAY_END.length()) + ARRAY_SEPARATOR + eventsB.substring(ARRAY_START.length());
+		return Requests.setParam(b, "events", events);
+	}
+
+	private static boolean isNonEmptyArray(String encoded) {
+		return encoded.length() > ARRAY_START.length() + ARRAY_END.length() && encoded.startsWith(ARRAY_START) && encoded.endsWith(ARRAY_END);
+	}
+}
@@ -0,0 +1,326 @@
+package ly.count.android.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+
+/**
+ * Compact binary form of queued request, stored in place of its URL-encoded query string.
+ *
+ * Record starts with a format version byte, followed by parameters in their original order. Each parameter
+ * is a varint tag, (name << 2) | type, where name is an index into NAMES or 0 for a name spelled out right
+ * after the tag. Value types are:
+ * <ul>
+ *     <li>VALUE_INTEGER: non-negative decimal number as a varint;</li>
+ *     <li>VALUE_TEXT: percent-decoded value as a sequence of chunks, where every JSON string is interned:
+ *     first occurrence is written out and added to the table, which starts with STRINGS, further
+ *     occurrences are written as table index.</li>
+ * </ul>
+ * Chunks are varints too, (argument << 2) | chunk kind, followed by argument bytes for literal and new string chunks.
+ *
+ * Percent-encoding is applied again on decode, so records are only used for requests which come out exactly
+ * the same after the round trip; encode() returns null for all other requests and they're stored as text.
+ */
+class RequestRecord {
+	static final int VERSION = 1;
+
+	private static final int VALUE_INTEGER = 0;
+	private static final int VALUE_TEXT = 1;
+
+	private static final int CHUNK_END = 0;
+	private static final int CHUNK_LITERAL = 1;
+	private static final int CHUNK_STRING = 2;
+	private static final int CHUNK_REFERENCE = 3;
+
+	// Never reorder or remove entries, indexes are stored in records; append new ones at the end
+	private static final String[] NAMES = {null, "app_key", "device_id", "timestamp", "sdk_version", "begin_session",
+			"session_duration", "end_session", "metrics", "events", "dimensions", "token_session", "android_token", "locale"};
+	private static final String[] STRINGS = {"key", "count", "sum", "timestamp", "segmentation", "_device", "_os",
+			"_os_version", "_carrier", "_resolution", "_locale", "_app_version"};
+
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	private RequestRecord() {
+	}
+
+	/**
+	 * @return record for given request or null if request can't be stored as record
+	 */
+	static byte[] encode(String data) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length() / 2);
+		ArrayList<String> strings = strings();
+		out.write(VERSION);
+
+		int start = 0;
+		while (start <= data.length()) {
+			int end = data.indexOf('&', start);
+			if (end == -1)
+				end = data.length();
+
+			int equals = data.indexOf('=', start);
+			if (equals == -1 || equals > end)
+				return null;
+
+			String name = data.substring(start, equals);
+			String value = data.substring(equals + 1, end);
+			int nameIndex = nameIndex(name);
+			int type = isInteger(value) ? VALUE_INTEGER : VALUE_TEXT;
+
+			writeVarint(out, (nameIndex << 2) | type);
+			if (nameIndex == 0)
+				writeBytes(out, utf8(name));
+
+			if (type == VALUE_INTEGER) {
+				writeVarint(out, Long.parseLong(value));
+			} else {
+				byte[] decoded = percentDecode(value);
+				if (decoded == null)
+					return null;
+				writeText(out, decoded, strings);
+			}
+
+			start = end + 1;
+		}
+
+		byte[] record = out.toByteArray();
+		return data.equals(decode(record)) ? record : null;
+	}
+
+	/**
+	 * @return request query string or null if record is malformed or has unknown version
+	 */
+	static String decode(byte[] record) {
+		if (record == null || record.length == 0 || record[0] != VERSION)
+			return null;
+
+		StringBuilder out = new StringBuilder(record.length * 2);
+		ArrayList<String> strings = strings();
+		int[] position = {1};
+
+		try {
+			while (position[0] < record.length) {
+				if (position[0] > 1)
+					out.append('&');
+
+				long tag = readVarint(record, position);
+				int nameIndex = (int) (tag >> 2);
+
+				if (nameIndex == 0) {
+					int length = (int) readVarint(record, position);
+					out.append(new String(record, position[0], length, "UTF-8"));
+					position[0] += length;
+				} else {
+					out.append(NAMES[nameIndex]);
+				}
+				out.append('=');
+
+				if ((tag & 3) == VALUE_INTEGER) {
+					out.append(readVarint(record, position));
+				} else {
+					readText(record, position, strings, out);
+				}
+			}
+		} catch (RuntimeException e) {
+			// Reported by caller along with connection ID
+			return null;
+		} catch (UnsupportedEncodingException e) {
+			return null;
+		}
+
+		return out.toString();
+	}
+
+	private static ArrayList<String> strings() {
+		ArrayList<String> strings = new ArrayList<String>(STRINGS.length + 16);
+		for (String string : STRINGS) {
+			strings.add(string);
+		}
+		return strings;
+	}
+
+	private static int nameIndex(String name) {
+		for (int i = 1; i < NAMES.length; i++) {
+			if (NAMES[i].equals(name))
+				return i;
+		}
+		return 0;
+	}
+
+	private static boolean isInteger(String value) {
+		int length = value.length();
+		if (length == 0 || length > 18 || (length > 1 && value.charAt(0) == '0'))
+			return false;
+
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c < '0' || c > '9')
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Splits decoded value into literal runs and JSON strings, replacing strings seen before with table references.
+	 */
+	private static void writeText(ByteArrayOutputStream out, byte[] text, ArrayList<String> strings) {
+		int literal = 0;
+		int i = 0;
+
+		while (i < text.length) {
+			if (text[i] != '"') {
+				i++;
+				continue;
+			}
+
+			int end = i + 1;
+			while (end < text.length && text[end] != '"') {
+				end += text[end] == '\\' ? 2 : 1;
+			}
+			if (end >= text.length)
+				break;
+
+			writeChunk(out, CHUNK_LITERAL, text, literal, i);
+
+			String string = string(text, i + 1, end);
+			int index = strings.indexOf(string);
+			if (index == -1) {
+				strings.add(string);
+				writeChunk(out, CHUNK_STRING, text, i + 1, end);
+			} else {
+				writeVarint(out, ((long) index << 2) | CHUNK_REFERENCE);
+			}
+
+			i = literal = end + 1;
+		}
+
+		writeChunk(out, CHUNK_LITERAL, text, literal, text.length);
+		writeVarint(out, CHUNK_END);
+	}
+
+	private static void writeChunk(ByteArrayOutputStream out, int kind, byte[] text, int start, int end) {
+		if (kind == CHUNK_LITERAL && start == end)
+			return;
+
+		writeVarint(out, ((long) (end - start) << 2) | kind);
+		out.write(text, start, end - start);
+	}
+
+	private static void readText(byte[] record, int[] position, ArrayList<String> strings, StringBuilder out) throws UnsupportedEncodingException {
+		while (true) {
+			long chunk = readVarint(record, position);
+			int kind = (int) (chunk & 3);
+			int argument = (int) (chunk >> 2);
+
+			switch (kind) {
+				case CHUNK_END:
+					return;
+				case CHUNK_LITERAL:
+					percentEncode(record, position[0], argument, out);
+					position[0] += argument;
+					break;
+				case CHUNK_STRING:
+					strings.add(new String(record, position[0], argument, "UTF-8"));
+					out.append("%22");
+					percentEncode(record, position[0], argument, out);
+					out.append("%22");
+					position[0] += argument;
+					break;
+				default:
+					out.append("%22");
+					byte[] string = utf8(strings.get(argument));
+					percentEncode(string, 0, string.length, out);
+					out.append("%22");
+			}
+		}
+	}
+
+	/**
+	 * Percent-encodes UTF-8 bytes exactly as URLEncoder does.
+	 */
+	private static void percentEncode(byte[] bytes, int start, int length, StringBuilder out) {
+		if (start + length > bytes.length)
+			throw new IndexOutOfBoundsException();
+
+		for (int i = start; i < start + length; i++) {
+			int b = bytes[i] & 0xFF;
+			if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '.' || b == '-' || b == '*' || b == '_') {
+				out.append((char) b);
+			} else if (b == ' ') {
+				out.append('+');
+			} else {
+				out.append('%').append(HEX[b >> 4]).append(HEX[b & 0xF]);
+			}
+		}
+	}
+
+	/**
+	 * @return decoded bytes or null if value contains malformed escape
+	 */
+	private static byte[] percentDecode(String value) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(value.length());
+		int length = value.length();
+
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c == '+') {
+				out.write(' ');
+			} else if (c == '%') {
+				if (i + 2 >= length)
+					return null;
+				int high = Character.digit(value.charAt(i + 1), 16);
+				int low = Character.digit(value.charAt(i + 2), 16);
+				if (high == -1 || low == -1)
+					return null;
+				out.write((high << 4) | low);
+				i += 2;
+			} else if (c < 0x80) {
+				out.write(c);
+			} else {
+				// Not produced by URLEncoder, round trip check would fail anyway
+				return null;
+			}
+		}
+
+		return out.toByteArray();
+	}
+
+	private static String string(byte[] bytes, int start, int end) {
+		try {
+			return new String(bytes, start, end - start, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static byte[] utf8(String string) {
+		try {
+			return string.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void writeBytes(ByteArrayOutputStream out, byte[] bytes) {
+		writeVarint(out, bytes.length);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	private static void writeVarint(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	private static long readVarint(byte[] bytes, int[] position) {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = bytes[position[0]++];
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IllegalArgumentException("Malformed varint");
+	}
+}
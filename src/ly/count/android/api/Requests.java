@@ -0,0 +1,82 @@
+package ly.count.android.api;
+
+/**
+ * Helpers for queued requests, which are stored as URL-encoded query strings.
+ */
+final class Requests {
+	private Requests() {
+	}
+
+	/**
+	 * @return raw (still URL-encoded) value of parameter, or null if there's no such parameter
+	 */
+	static String param(String data, String name) {
+		int start = find(data, name);
+		if (start == -1)
+			return null;
+
+		start += name.length() + 1;
+		int end = data.indexOf('&', start);
+		return end == -1 ? data.substring(start) : data.substring(start, end);
+	}
+
+	/**
+	 * @return request with value of existing parameter replaced, or with parameter appended if there was none
+	 */
+	static String setParam(String data, String name, String value) {
+		int start = find(data, name);
+		if (start == -1)
+			return data + "&" + name + "=" + value;
+
+		start += name.length() + 1;
+		int end = data.indexOf('&', start);
+		return data.substring(0, start) + value + (end == -1 ? "" : data.substring(end));
+	}
+
+	/**
+	 * @return true if request only reports session duration, without starting or ending session or carrying events
+	 */
+	static boolean isSessionUpdate(String data) {
+		return find(data, "session_duration") != -1 && find(data, "begin_session") == -1 && find(data, "end_session") == -1
+				&& find(data, "events") == -1 && find(data, "token_session") == -1;
+	}
+
+	/**
+	 * @return true if both requests come from the same app and device and carry the same dimensions,
+	 * which is what any two requests need to have in common to be merged into one
+	 */
+	static boolean sameOrigin(String a, String b) {
+		return equal(param(a, "app_key"), param(b, "app_key")) && equal(param(a, "device_id"), param(b, "device_id"))
+				&& equal(param(a, "dimensions"), param(b, "dimensions"));
+	}
+
+	static int intParam(String data, String name) {
+		String value = param(data, name);
+		if (value == null)
+			return 0;
+
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/**
+	 * @return index of "name=" occurrence at parameter boundary, or -1
+	 */
+	private static int find(String data, String name) {
+		int index = 0;
+		while ((index = data.indexOf(name, index)) != -1) {
+			int after = index + name.length();
+			if ((index == 0 || data.charAt(index - 1) == '&') && after < data.length() && data.charAt(after) == '=')
+				return index;
+			index = after;
+		}
+		return -1;
+	}
+}
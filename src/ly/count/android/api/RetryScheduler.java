@@ -0,0 +1,100 @@
+package ly.count.android.api;
+
+import java.util.Random;
+
+/**
+ * Decides when failed uploads should be retried: exponential backoff with jitter, capped by maximum delay.
+ */
+class RetryScheduler {
+	static final int SUCCESS = 0;
+	/** Request didn't reach server or response didn't come back, retry later */
+	static final int FAILURE_NETWORK = 1;
+	/** Server, or proxy in front of it, didn't accept request for now (5xx, 3xx, 4xx other than 400), retry later */
+	static final int FAILURE_SERVER = 2;
+	/** Server rejected request as malformed (400), retrying won't help */
+	static final int FAILURE_CLIENT = 3;
+
+	static final long DEFAULT_BASE_DELAY = 5 * 1000;
+	static final long DEFAULT_MAX_DELAY = 30 * 60 * 1000;
+
+	private final Clock clock_;
+	private final Random random_;
+	private final long baseDelay_;
+	private final long maxDelay_;
+	private int failures_ = 0;
+	private long retryAt_ = 0;
+
+	RetryScheduler() {
+		// Same time base as executor scheduling the retry, so that wall clock changes can't stall it
+		this(Clock.ELAPSED, new Random(), DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+	}
+
+	RetryScheduler(Clock clock, Random random, long baseDelay, long maxDelay) {
+		clock_ = clock;
+		random_ = random;
+		baseDelay_ = baseDelay;
+		maxDelay_ = maxDelay;
+	}
+
+	/**
+	 * @return one of SUCCESS, FAILURE_SERVER or FAILURE_CLIENT for given HTTP status code
+	 */
+	static int classify(int status) {
+		if (status >= 200 && status < 300)
+			return SUCCESS;
+		// That's the only status Countly API rejects requests with. Anything else (redirects, 401/403/404 from
+		// misconfigured proxies or server being set up) can go away on its own, so requests are kept till then
+		if (status == 400)
+			return FAILURE_CLIENT;
+		return FAILURE_SERVER;
+	}
+
+	static boolean isRetryable(int failure) {
+		return failure == FAILURE_NETWORK || failure == FAILURE_SERVER;
+	}
+
+	/**
+	 * @return true while scheduled retry time hasn't come yet, uploads shouldn't be attempted meanwhile
+	 */
+	synchronized boolean isBackingOff() {
+		return clock_.currentTimeMillis() < retryAt_;
+	}
+
+	/**
+	 * Registers failed attempt.
+	 * @return delay in milliseconds after which next attempt should be made
+	 */
+	synchronized long onFailure() {
+		failures_++;
+
+		long delay = baseDelay_ << Math.min(failures_ - 1, 30);
+		if (delay <= 0 || delay > maxDelay_)
+			delay = maxDelay_;
+
+		// Half of delay is fixed, another half is random, so that devices which went offline together don't come back in sync
+		delay = delay / 2 + (long) (random_.nextDouble() * (delay / 2));
+
+		retryAt_ = clock_.currentTimeMillis() + delay;
+		return delay;
+	}
+
+	/**
+	 * Opens the gate once scheduled retry fires, or when the retry was dropped, keeping failure count
+	 * so that next failure backs off further.
+	 */
+	synchronized void expire() {
+		retryAt_ = 0;
+	}
+
+	/**
+	 * Resets backoff, called on successful upload or when network becomes available.
+	 */
+	synchronized void reset() {
+		failures_ = 0;
+		retryAt_ = 0;
+	}
+
+	synchronized int getFailures() {
+		return failures_;
+	}
+}
@@ -0,0 +1,197 @@
+package ly.count.android.api;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Encodes segmentation for events table and decodes it back in a single pass over the characters.
+ *
+ * Segmentation is always written by write() as flat JSON object with string values,
+ * so there's no need to build a JSONObject tree (which boxes every value and keeps its own map) just
+ * to copy it into another map right away. Anything which doesn't look like that format is handed
+ * over to JSONObject, so rows written by other versions are still read correctly.
+ */
+class SegmentationReader {
+	private final String string_;
+	private final StringBuilder buffer_ = new StringBuilder(32);
+	private int position_;
+
+	private SegmentationReader(String string) {
+		string_ = string;
+	}
+
+	/**
+	 * Canonical string representation of segmentation: JSON object with keys sorted, empty string for no segmentation.
+	 * Used as part of event unique key, so equal segmentations must always produce equal strings.
+	 */
+	static String write(Map<String, String> segmentation) {
+		if (segmentation == null || segmentation.isEmpty())
+			return "";
+
+		StringBuilder builder = new StringBuilder("{");
+		for (Map.Entry<String, String> entry : new TreeMap<String, String>(segmentation).entrySet()) {
+			if (builder.length() > 1)
+				builder.append(',');
+			builder.append(JSONObject.quote(entry.getKey())).append(':').append(JSONObject.quote(entry.getValue()));
+		}
+		return builder.append('}').toString();
+	}
+
+	/**
+	 * @return segmentation map or null for empty string
+	 */
+	static Map<String, String> read(String string) {
+		if (string == null || string.length() == 0)
+			return null;
+
+		Map<String, String> segmentation = new SegmentationReader(string).object();
+		return segmentation == null ? readJSON(string) : segmentation;
+	}
+
+	/**
+	 * @return parsed object or null if string isn't a flat object with string values
+	 */
+	private Map<String, String> object() {
+		HashMap<String, String> segmentation = new HashMap<String, String>();
+
+		if (!consume('{'))
+			return null;
+
+		if (consume('}'))
+			return end() ? segmentation : null;
+
+		do {
+			String key = string();
+			if (key == null || !consume(':'))
+				return null;
+
+			String value = string();
+			if (value == null)
+				return null;
+
+			segmentation.put(key, value);
+		} while (consume(','));
+
+		return consume('}') && end() ? segmentation : null;
+	}
+
+	private String string() {
+		if (!consume('"'))
+			return null;
+
+		int length = string_.length();
+		int start = position_;
+
+		// Fast path: no escapes, return substring as is
+		while (position_ < length) {
+			char c = string_.charAt(position_);
+			if (c == '"') {
+				return string_.substring(start, position_++);
+			} else if (c == '\\') {
+				break;
+			}
+			position_++;
+		}
+
+		buffer_.setLength(0);
+		buffer_.append(string_, start, position_);
+
+		while (position_ < length) {
+			char c = string_.charAt(position_++);
+			if (c == '"')
+				return buffer_.toString();
+
+			if (c != '\\') {
+				buffer_.append(c);
+				continue;
+			}
+
+			if (position_ >= length)
+				return null;
+
+			char escaped = string_.charAt(position_++);
+			switch (escaped) {
+				case '"':
+				case '\\':
+				case '/':
+					buffer_.append(escaped);
+					break;
+				case 'b':
+					buffer_.append('\b');
+					break;
+				case 'f':
+					buffer_.append('\f');
+					break;
+				case 'n':
+					buffer_.append('\n');
+					break;
+				case 'r':
+					buffer_.append('\r');
+					break;
+				case 't':
+					buffer_.append('\t');
+					break;
+				case 'u':
+					if (position_ + 4 > length)
+						return null;
+					int code = 0;
+					for (int i = 0; i < 4; i++) {
+						int digit = Character.digit(string_.charAt(position_++), 16);
+						if (digit == -1)
+							return null;
+						code = (code << 4) | digit;
+					}
+					buffer_.append((char) code);
+					break;
+				default:
+					return null;
+			}
+		}
+
+		return null;
+	}
+
+	private boolean consume(char expected) {
+		skipWhitespace();
+		if (position_ < string_.length() && string_.charAt(position_) == expected) {
+			position_++;
+			return true;
+		}
+		return false;
+	}
+
+	private boolean end() {
+		skipWhitespace();
+		return position_ == string_.length();
+	}
+
+	private void skipWhitespace() {
+		while (position_ < string_.length() && string_.charAt(position_) <= ' ') {
+			position_++;
+		}
+	}
+
+	private static Map<String, String> readJSON(String string) {
+		HashMap<String, String> segmentation = new HashMap<String, String>();
+
+		try {
+			JSONObject json = new JSONObject(string);
+			@SuppressWarnings("unchecked")
+			Iterator<String> nameItr = json.keys();
+
+			while (nameItr.hasNext()) {
+				String key = nameItr.next();
+				segmentation.put(key, json.getString(key));
+			}
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+
+		return segmentation;
+	}
+}
@@ -0,0 +1,39 @@
+package ly.count.android.api;
+
+/**
+ * Foreground time of current session not yet reported to server. Reports are whole seconds,
+ * the fraction left over is carried into the next one so that no time is lost to rounding.
+ */
+class SessionLength {
+	private Clock clock_ = Clock.SYSTEM;
+	private double unsent_ = 0;
+	private double lastTime_;
+
+	public void setClock(Clock clock) {
+		clock_ = clock;
+	}
+
+	/**
+	 * Starts counting, called when app comes to foreground.
+	 */
+	public void start() {
+		lastTime_ = now();
+	}
+
+	/**
+	 * @return whole seconds in foreground since start() or previous report
+	 */
+	public int report() {
+		double now = now();
+		unsent_ += now - lastTime_;
+		lastTime_ = now;
+
+		int duration = (int) unsent_;
+		unsent_ -= duration;
+		return duration;
+	}
+
+	private double now() {
+		return clock_.currentTimeMillis() / 1000.0;
+	}
+}
@@ -0,0 +1,112 @@
+package ly.count.android.api;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Session update and event flush timers, each with its own interval. They only run between start() and stop(),
+ * that is while some activity is visible, so that nothing wakes the process up while app is in background.
+ */
+class SessionTimers {
+	private final Runnable onSession_;
+	private final Runnable onEvent_;
+	private ScheduledExecutorService scheduler_;
+	private ScheduledExecutorService timers_;
+	private ScheduledFuture<?> sessionTimer_;
+	private ScheduledFuture<?> eventTimer_;
+	private long sessionUpdateInterval_;
+	private long eventFlushInterval_;
+
+	SessionTimers(Runnable onSession, Runnable onEvent, long sessionUpdateInterval, long eventFlushInterval) {
+		onSession_ = onSession;
+		onEvent_ = onEvent;
+		sessionUpdateInterval_ = sessionUpdateInterval;
+		eventFlushInterval_ = eventFlushInterval;
+	}
+
+	/**
+	 * @param millis session timer interval, 0 to disable it
+	 */
+	public synchronized void setSessionUpdateInterval(long millis) {
+		sessionUpdateInterval_ = millis;
+		restart();
+	}
+
+	/**
+	 * @param millis event timer interval, 0 to disable it
+	 */
+	public synchronized void setEventFlushInterval(long millis) {
+		eventFlushInterval_ = millis;
+		restart();
+	}
+
+	/**
+	 * Replaces executor timers run on, e.g. with one controlled by test. By default a dedicated thread
+	 * is started by start() and stopped by stop().
+	 */
+	public synchronized void setScheduler(ScheduledExecutorService scheduler) {
+		boolean running = isRunning();
+
+		stop();
+		scheduler_ = scheduler;
+		if (running)
+			start();
+	}
+
+	public synchronized boolean isRunning() {
+		return timers_ != null;
+	}
+
+	/**
+	 * Schedules timers, starting timer thread if needed. First run of each timer is one interval later.
+	 */
+	public synchronized void start() {
+		if (timers_ != null)
+			return;
+
+		timers_ = scheduler_ != null ? scheduler_ : Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "Countly timer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		if (sessionUpdateInterval_ > 0)
+			sessionTimer_ = timers_.scheduleWithFixedDelay(onSession_, sessionUpdateInterval_, sessionUpdateInterval_, TimeUnit.MILLISECONDS);
+
+		if (eventFlushInterval_ > 0)
+			eventTimer_ = timers_.scheduleWithFixedDelay(onEvent_, eventFlushInterval_, eventFlushInterval_, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Cancels timers and stops timer thread.
+	 */
+	public synchronized void stop() {
+		if (timers_ == null)
+			return;
+
+		if (sessionTimer_ != null)
+			sessionTimer_.cancel(false);
+		if (eventTimer_ != null)
+			eventTimer_.cancel(false);
+		sessionTimer_ = null;
+		eventTimer_ = null;
+
+		// Injected scheduler isn't ours to stop
+		if (timers_ != scheduler_)
+			timers_.shutdown();
+		timers_ = null;
+	}
+
+	private void restart() {
+		if (timers_ != null) {
+			stop();
+			start();
+		}
+	}
+}
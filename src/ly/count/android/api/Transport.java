@@ -0,0 +1,110 @@
+package ly.count.android.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Sends requests to Countly server.
+ * Implementations are expected to keep connections alive between calls, so a single instance
+ * should be reused for the whole life of ConnectionQueue.
+ */
+interface Transport {
+	/**
+	 * Performs GET request and reads the whole response.
+	 * @return HTTP status code
+	 */
+	int get(String url) throws IOException;
+
+	/**
+	 * Performs POST request with application/x-www-form-urlencoded body and reads the whole response.
+	 * @param contentEncoding encoding body is already compressed with, e.g. "gzip", or null for none
+	 * @return HTTP status code
+	 */
+	int post(String url, byte[] body, String contentEncoding) throws IOException;
+}
+
+/**
+ * HttpURLConnection-based transport. HttpURLConnection pools connections by itself as long as
+ * response stream is read to the end and closed without calling disconnect(), so TCP and TLS
+ * handshakes happen once per host instead of once per request. Before Froyo pooling is broken,
+ * ConnectionQueue turns it off there.
+ */
+class HttpTransport implements Transport {
+	static final int DEFAULT_CONNECT_TIMEOUT = 30 * 1000;
+	static final int DEFAULT_READ_TIMEOUT = 30 * 1000;
+
+	private final int connectTimeout_;
+	private final int readTimeout_;
+
+	HttpTransport() {
+		this(DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT);
+	}
+
+	HttpTransport(int connectTimeout, int readTimeout) {
+		connectTimeout_ = connectTimeout;
+		readTimeout_ = readTimeout;
+	}
+
+	@Override
+	public int get(String url) throws IOException {
+		HttpURLConnection connection = open(url);
+		return finish(connection);
+	}
+
+	@Override
+	public int post(String url, byte[] body, String contentEncoding) throws IOException {
+		HttpURLConnection connection = open(url);
+		connection.setDoOutput(true);
+		connection.setFixedLengthStreamingMode(body.length);
+		connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8");
+		if (contentEncoding != null)
+			connection.setRequestProperty("Content-Encoding", contentEncoding);
+
+		OutputStream output = connection.getOutputStream();
+		try {
+			output.write(body);
+		} finally {
+			output.close();
+		}
+
+		return finish(connection);
+	}
+
+	private HttpURLConnection open(String url) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		connection.setConnectTimeout(connectTimeout_);
+		connection.setReadTimeout(readTimeout_);
+		connection.setUseCaches(false);
+		connection.setRequestProperty("Accept-Encoding", "gzip");
+		return connection;
+	}
+
+	/**
+	 * Drains response (or error) stream so the underlying socket goes back to the pool. Body itself is of no
+	 * interest, so it's read as is, without decompressing. Once status is known request is done: failing to drain
+	 * only costs a new connection next time, so it doesn't fail the request.
+	 */
+	private static int finish(HttpURLConnection connection) throws IOException {
+		int status = connection.getResponseCode();
+
+		try {
+			InputStream input = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+			if (input != null) {
+				try {
+					byte[] buffer = new byte[1024];
+					while (input.read(buffer) != -1)
+						;
+				} finally {
+					input.close();
+				}
+			}
+		} catch (IOException e) {
+			// Connection isn't reused
+		}
+
+		return status;
+	}
+}
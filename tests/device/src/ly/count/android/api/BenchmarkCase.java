@@ -0,0 +1,38 @@
+package ly.count.android.api;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Base of on-device benchmarks. Each measurement is repeated a few times with untimed setup before every
+ * round and the best round is reported to logcat under "CountlyBenchmark" tag.
+ */
+public abstract class BenchmarkCase extends AndroidTestCase {
+	static final String TAG = "CountlyBenchmark";
+	private static final int ROUNDS = 5;
+
+	/**
+	 * @param operations number of operations one run of task performs
+	 * @param setup run before each round, not timed, may be null
+	 * @return microseconds per operation
+	 */
+	protected double time(String name, int operations, Runnable setup, Runnable task) {
+		double best = Double.MAX_VALUE;
+
+		// First round only warms up
+		for (int round = 0; round <= ROUNDS; round++) {
+			if (setup != null)
+				setup.run();
+
+			long start = System.nanoTime();
+			task.run();
+			long elapsed = System.nanoTime() - start;
+
+			if (round > 0)
+				best = Math.min(best, elapsed / 1000.0 / operations);
+		}
+
+		Log.i(TAG, String.format("%-50s %10.1f us/op", name, best));
+		return best;
+	}
+}
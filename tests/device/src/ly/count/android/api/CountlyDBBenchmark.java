@@ -0,0 +1,122 @@
+package ly.count.android.api;
+
+import java.util.ArrayList;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Enqueue and dequeue throughput of CountlyDB connection queue against the way it used to work:
+ * SQL built by concatenation and run with execSQL(), and dequeue querying the head of the queue
+ * again before deleting each row by its ID.
+ */
+public class CountlyDBBenchmark extends BenchmarkCase {
+	private static final int REQUESTS = 500;
+	private static final String DATA = "app_key=0123456789abcdef0123456789abcdef&device_id=3f2a11e4b8&timestamp=1400000000"
+			+ "&events=%5B%7B%22key%22%3A%22purchase%22%2C%22count%22%3A1%2C%22sum%22%3A3.5%2C%22timestamp%22%3A1400000000"
+			+ "%2C%22segmentation%22%3A%7B%22country%22%3A%22Germany%22%7D%7D%5D";
+
+	private CountlyDB db_;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		getContext().deleteDatabase("countly");
+		db_ = new CountlyDB(getContext());
+		db_.setLimits(0, 0, Countly.QUEUE_OVERFLOW_DROP_OLDEST);
+		// Plain query strings, as they used to be stored, so that only the way statements are run differs
+		db_.setCompactStorage(false);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		db_.close();
+		getContext().deleteDatabase("countly");
+		super.tearDown();
+	}
+
+	public void testEnqueue() {
+		Runnable clear = new Runnable() {
+			@Override
+			public void run() {
+				db_.getWritableDatabase().execSQL("DELETE FROM CONNECTIONS;");
+			}
+		};
+
+		time("offer(), transaction per request", REQUESTS, clear, new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < REQUESTS; i++) {
+					db_.offer(DATA);
+				}
+			}
+		});
+
+		final ArrayList<String> batch = new ArrayList<String>();
+		for (int i = 0; i < REQUESTS; i++) {
+			batch.add(DATA);
+		}
+		time("offer(List), one transaction", REQUESTS, clear, new Runnable() {
+			@Override
+			public void run() {
+				db_.offer(batch);
+			}
+		});
+
+		time("old: execSQL() INSERT", REQUESTS, clear, new Runnable() {
+			@Override
+			public void run() {
+				SQLiteDatabase db = db_.getWritableDatabase();
+				for (int i = 0; i < REQUESTS; i++) {
+					db.execSQL("INSERT INTO CONNECTIONS (CONNECTION) VALUES('" + DATA + "');");
+				}
+			}
+		});
+	}
+
+	public void testDequeue() {
+		Runnable fill = new Runnable() {
+			@Override
+			public void run() {
+				db_.getWritableDatabase().execSQL("DELETE FROM CONNECTIONS;");
+				ArrayList<String> batch = new ArrayList<String>();
+				for (int i = 0; i < REQUESTS; i++) {
+					batch.add(DATA);
+				}
+				db_.offer(batch);
+			}
+		};
+
+		time("peekWindow(16) + deleteUpTo()", REQUESTS, fill, new Runnable() {
+			@Override
+			public void run() {
+				ArrayList<Connection> window;
+				while (!(window = db_.peekWindow(16)).isEmpty()) {
+					for (Connection connection : window) {
+						db_.deleteUpTo(connection.id);
+					}
+				}
+			}
+		});
+
+		time("old: query head + execSQL() DELETE", REQUESTS, fill, new Runnable() {
+			@Override
+			public void run() {
+				SQLiteDatabase db = db_.getWritableDatabase();
+				while (true) {
+					Cursor cursor = db.query("CONNECTIONS", null, null, null, null, null, "ID ASC", "1");
+					if (!cursor.moveToFirst()) {
+						cursor.close();
+						break;
+					}
+					long id = cursor.getLong(0);
+					assertEquals(DATA, cursor.getString(1));
+					cursor.close();
+					db.execSQL("DELETE FROM CONNECTIONS WHERE ID = " + id + ";");
+				}
+			}
+		});
+
+		assertTrue(db_.peekWindow(1).isEmpty());
+	}
+}
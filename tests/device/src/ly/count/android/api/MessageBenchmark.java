@@ -0,0 +1,62 @@
+package ly.count.android.api;
+
+import android.os.Bundle;
+import android.os.Parcel;
+
+/**
+ * Message construction from GCM data, and Parcel round trip the way messages travel through PendingIntents
+ * and broadcasts: current layout against the old one, which parcelled the whole GCM data bundle
+ * with service fields included.
+ */
+public class MessageBenchmark extends BenchmarkCase {
+	private static final int MESSAGES = 1000;
+
+	private volatile Object sink_;
+
+	public void testConstruction() {
+		final Bundle data = MessageParcelTest.gcmData();
+
+		time("new Message() + type checks", MESSAGES, null, new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < MESSAGES; i++) {
+					CountlyMessaging.Message message = new CountlyMessaging.Message(data);
+					sink_ = message.isValid() && message.hasMessage() ? message.getMessage() : null;
+				}
+			}
+		});
+	}
+
+	public void testParcelRoundTrip() {
+		final CountlyMessaging.Message message = new CountlyMessaging.Message(MessageParcelTest.gcmData());
+		final Bundle data = MessageParcelTest.gcmData();
+
+		time("Parcel round trip, current layout", MESSAGES, null, new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < MESSAGES; i++) {
+					Parcel parcel = Parcel.obtain();
+					message.writeToParcel(parcel, 0);
+					parcel.setDataPosition(0);
+					CountlyMessaging.Message read = CountlyMessaging.Message.CREATOR.createFromParcel(parcel);
+					sink_ = read.isValid() ? read.getMessage() : null;
+					parcel.recycle();
+				}
+			}
+		});
+
+		time("Parcel round trip, old layout (whole bundle)", MESSAGES, null, new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < MESSAGES; i++) {
+					Parcel parcel = Parcel.obtain();
+					parcel.writeBundle(data);
+					parcel.setDataPosition(0);
+					CountlyMessaging.Message read = CountlyMessaging.Message.CREATOR.createFromParcel(parcel);
+					sink_ = read.isValid() ? read.getMessage() : null;
+					parcel.recycle();
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,120 @@
+package ly.count.android.api;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.test.AndroidTestCase;
+
+/**
+ * CountlyMessaging.Message Parcel round trips in current layout and from the layout used before
+ * PARCEL_FORMAT, which PendingIntents created by previous app version still carry.
+ */
+public class MessageParcelTest extends AndroidTestCase {
+	static final String ID = "0123456789abcdef01234567";
+
+	/**
+	 * @return data bundle the way GCM delivers it: Countly fields, custom data and service fields
+	 */
+	static Bundle gcmData() {
+		Bundle data = new Bundle();
+		data.putString("c.i", ID);
+		data.putString("c.l", "http://count.ly");
+		data.putString("message", "Hello");
+		data.putString("sound", "default");
+		data.putString("promo", "spring");
+		data.putString("from", "123456789");
+		data.putString("collapse_key", "do_not_collapse");
+		data.putString("google.message_id", "0:1400000000000000%0123456789abcdef");
+		data.putInt("android.support.content.wakelockid", 1);
+		return data;
+	}
+
+	public void testRoundTrip() {
+		CountlyMessaging.Message message = new CountlyMessaging.Message(gcmData());
+
+		Parcel parcel = Parcel.obtain();
+		try {
+			message.writeToParcel(parcel, 0);
+			parcel.writeInt(42);
+			parcel.setDataPosition(0);
+
+			CountlyMessaging.Message read = CountlyMessaging.Message.CREATOR.createFromParcel(parcel);
+			assertFields(read);
+			assertEquals("Data after message is left in place", 42, parcel.readInt());
+
+			Bundle data = read.getData();
+			assertEquals("spring", data.getString("promo"));
+			assertEquals(ID, data.getString("c.i"));
+			assertFalse(data.containsKey("from"));
+			assertFalse(data.containsKey("google.message_id"));
+			assertFalse(data.containsKey("android.support.content.wakelockid"));
+		} finally {
+			parcel.recycle();
+		}
+	}
+
+	public void testRoundTripWithoutCustomData() {
+		Bundle data = new Bundle();
+		data.putString("c.i", ID);
+		data.putString("message", "Hello");
+		data.putString("c.s", "true");
+
+		Parcel parcel = Parcel.obtain();
+		try {
+			new CountlyMessaging.Message(data).writeToParcel(parcel, 0);
+			parcel.setDataPosition(0);
+
+			CountlyMessaging.Message read = CountlyMessaging.Message.CREATOR.createFromParcel(parcel);
+			assertTrue(read.isValid());
+			assertTrue(read.isSilent());
+			assertEquals("Hello", read.getMessage());
+			assertEquals(data.keySet(), read.getData().keySet());
+		} finally {
+			parcel.recycle();
+		}
+	}
+
+	public void testReadsLegacyLayout() {
+		// Previous versions wrote nothing but the data bundle
+		Parcel parcel = Parcel.obtain();
+		try {
+			parcel.writeBundle(gcmData());
+			parcel.writeInt(42);
+			parcel.setDataPosition(0);
+
+			CountlyMessaging.Message read = CountlyMessaging.Message.CREATOR.createFromParcel(parcel);
+			assertFields(read);
+			assertEquals("spring", read.getData().getString("promo"));
+			assertEquals(42, parcel.readInt());
+		} finally {
+			parcel.recycle();
+		}
+	}
+
+	public void testReadsLegacyNullBundle() {
+		Parcel parcel = Parcel.obtain();
+		try {
+			parcel.writeBundle(null);
+			parcel.setDataPosition(0);
+
+			CountlyMessaging.Message read = CountlyMessaging.Message.CREATOR.createFromParcel(parcel);
+			assertNull(read.getId());
+			assertFalse(read.isValid());
+			assertTrue(read.isUnknown());
+		} finally {
+			parcel.recycle();
+		}
+	}
+
+	private static void assertFields(CountlyMessaging.Message message) {
+		assertEquals(ID, message.getId());
+		assertEquals("http://count.ly", message.getLink());
+		assertNull(message.getReview());
+		assertEquals("Hello", message.getMessage());
+		assertEquals("default", message.getSoundUri());
+		assertTrue(message.isValid());
+		assertTrue(message.hasLink());
+		assertTrue(message.hasMessage());
+		assertTrue(message.hasSoundDefault());
+		assertFalse(message.isSilent());
+	}
+}
@@ -0,0 +1,67 @@
+package ly.count.android.api;
+
+import android.content.Context;
+
+/**
+ * PackageManager lookups done for every received push (broadcast action and notification icon) and
+ * at registration (version code), with CountlyMessaging config cache cleared before each lookup, which
+ * is what every push used to cost, and with the cache warm.
+ */
+public class MessagingConfigBenchmark extends BenchmarkCase {
+	private static final int PUSHES = 200;
+
+	@Override
+	protected void tearDown() throws Exception {
+		CountlyMessaging.clearConfigCache();
+		super.tearDown();
+	}
+
+	public void testPushLookups() {
+		final Context context = getContext();
+		assertEquals("ly.count.android.api.broadcast", CountlyMessaging.getBroadcastAction(context));
+
+		time("broadcast action + icon per push, cold", PUSHES, null, new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < PUSHES; i++) {
+					CountlyMessaging.clearConfigCache();
+					CountlyMessaging.getBroadcastAction(context);
+					CountlyMessaging.getIcon(context);
+				}
+			}
+		});
+
+		time("broadcast action + icon per push, warm", PUSHES, null, new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < PUSHES; i++) {
+					CountlyMessaging.getBroadcastAction(context);
+					CountlyMessaging.getIcon(context);
+				}
+			}
+		});
+	}
+
+	public void testAppVersion() {
+		final Context context = getContext();
+
+		time("version code, cold", PUSHES, null, new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < PUSHES; i++) {
+					CountlyMessaging.clearConfigCache();
+					CountlyMessaging.getAppVersion(context);
+				}
+			}
+		});
+
+		time("version code, warm", PUSHES, null, new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < PUSHES; i++) {
+					CountlyMessaging.getAppVersion(context);
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,83 @@
+package ly.count.android.api;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Timing and allocation helpers for *Benchmark classes, which run with -Pbenchmark only.
+ * Each measurement is warmed up first and the best of several rounds is reported, so that
+ * JIT compilation and GC pauses don't end up in results.
+ */
+final class Benchmarks {
+	private static final long WARMUP_NANOS = 500 * 1000 * 1000L;
+	private static final int ROUNDS = 5;
+
+	private Benchmarks() {
+	}
+
+	/**
+	 * Task performing a number of operations per run.
+	 */
+	interface Task {
+		/**
+		 * @return any value derived from work done, so that JIT can't drop the work
+		 */
+		Object run();
+	}
+
+	private static volatile Object sink_;
+
+	/**
+	 * Runs task repeatedly and prints time per operation.
+	 * @param operations number of operations one run of task performs
+	 * @return nanoseconds per operation
+	 */
+	static double time(String name, int operations, Task task) {
+		long warmupEnd = System.nanoTime() + WARMUP_NANOS;
+		int runs = 0;
+		while (System.nanoTime() < warmupEnd || runs < 3) {
+			sink_ = task.run();
+			runs++;
+		}
+
+		// Enough runs per round for a round to take about 100 ms
+		int runsPerRound = Math.max(1, (int) (runs * 100 * 1000 * 1000L / WARMUP_NANOS));
+		double best = Double.MAX_VALUE;
+		for (int round = 0; round < ROUNDS; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < runsPerRound; i++) {
+				sink_ = task.run();
+			}
+			best = Math.min(best, (System.nanoTime() - start) / (double) runsPerRound / operations);
+		}
+
+		System.out.println(String.format("%-60s %12.1f ns/op", name, best));
+		return best;
+	}
+
+	/**
+	 * Runs task once warmed up and prints heap bytes allocated per operation by the calling thread.
+	 * @return bytes per operation, or -1 if JVM can't tell
+	 */
+	static double allocation(String name, int operations, Task task) {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean))
+			return -1;
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		long thread = Thread.currentThread().getId();
+
+		// Warm up long enough for JIT to eliminate whatever allocations it can
+		long warmupEnd = System.nanoTime() + WARMUP_NANOS;
+		while (System.nanoTime() < warmupEnd) {
+			sink_ = task.run();
+		}
+
+		long before = threads.getThreadAllocatedBytes(thread);
+		sink_ = task.run();
+		double bytes = (threads.getThreadAllocatedBytes(thread) - before) / (double) operations;
+
+		System.out.println(String.format("%-60s %12.1f bytes/op", name, bytes));
+		return bytes;
+	}
+}
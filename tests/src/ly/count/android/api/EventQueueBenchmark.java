@@ -0,0 +1,106 @@
+package ly.count.android.api;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Recording into hash-indexed EventQueue against linear scan over a list of aggregates, which is how
+ * events used to be looked up, at 10, 100 and 1000 distinct aggregates. Storage isn't part of either:
+ * the queue only buffers writes, and the scan is measured without the saveEvents() call it used to make.
+ */
+public class EventQueueBenchmark {
+	private static final int RECORDINGS = 10000;
+
+	/**
+	 * Lookup events used to do: compare key and segmentation of every aggregate in turn.
+	 */
+	private static class LinearScan {
+		private final ArrayList<Event> events_ = new ArrayList<Event>();
+
+		synchronized void recordEvent(String key, Map<String, String> segmentation, int count) {
+			int timestamp = (int) (System.currentTimeMillis() / 1000);
+
+			for (int i = 0; i < events_.size(); ++i) {
+				Event event = events_.get(i);
+
+				if (event.key.equals(key) && event.segmentation != null && event.segmentation.equals(segmentation)) {
+					event.count += count;
+					event.timestamp = (int) ((event.timestamp + (long) timestamp) / 2);
+					return;
+				}
+			}
+
+			Event event = new Event();
+			event.key = key;
+			event.segmentation = segmentation;
+			event.count = count;
+			event.timestamp = timestamp;
+			events_.add(event);
+		}
+	}
+
+	@Test
+	public void recordEvent() {
+		for (int aggregates : new int[]{10, 100, 1000}) {
+			final List<Map<String, String>> segmentations = segmentations(aggregates);
+
+			final EventQueue queue = new EventQueue(new MemoryEventStore());
+			queue.getBuffer().setDurability(60 * 60 * 1000, Integer.MAX_VALUE);
+			Benchmarks.time("EventQueue.recordEvent, " + aggregates + " aggregates", RECORDINGS, new Benchmarks.Task() {
+				@Override
+				public Object run() {
+					for (int i = 0; i < RECORDINGS; i++) {
+						queue.recordEvent("level", segmentations.get(i % segmentations.size()), 1);
+					}
+					return queue;
+				}
+			});
+
+			final LinearScan scan = new LinearScan();
+			Benchmarks.time("linear scan, " + aggregates + " aggregates", RECORDINGS, new Benchmarks.Task() {
+				@Override
+				public Object run() {
+					for (int i = 0; i < RECORDINGS; i++) {
+						scan.recordEvent("level", segmentations.get(i % segmentations.size()), 1);
+					}
+					return scan;
+				}
+			});
+		}
+	}
+
+	@Test
+	public void eventKey() {
+		final List<Map<String, String>> segmentations = segmentations(1000);
+
+		Benchmarks.time("new EventKey().hashCode()", RECORDINGS, new Benchmarks.Task() {
+			@Override
+			public Object run() {
+				int hash = 0;
+				for (int i = 0; i < RECORDINGS; i++) {
+					hash += new EventKey("level", segmentations.get(i % segmentations.size())).hashCode();
+				}
+				return hash;
+			}
+		});
+	}
+
+	/**
+	 * Segmentations of a per-level event, each with a few common keys and one distinct value.
+	 */
+	private static List<Map<String, String>> segmentations(int count) {
+		List<Map<String, String>> segmentations = new ArrayList<Map<String, String>>();
+		for (int i = 0; i < count; i++) {
+			Map<String, String> segmentation = new HashMap<String, String>();
+			segmentation.put("level", "level-" + i);
+			segmentation.put("mode", "campaign");
+			segmentation.put("difficulty", "normal");
+			segmentations.add(segmentation);
+		}
+		return segmentations;
+	}
+}
@@ -0,0 +1,83 @@
+package ly.count.android.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.net.URLDecoder;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EventQueueTest {
+	private static class FakeClock implements Clock {
+		long now;
+
+		@Override
+		public long currentTimeMillis() {
+			return now;
+		}
+	}
+
+	private final FakeClock clock_ = new FakeClock();
+	private EventQueue queue_;
+
+	@Before
+	public void setUp() {
+		queue_ = new EventQueue(new MemoryEventStore(), clock_);
+		// Nothing is committed in background, commit() logs and android.util.Log is a stub here
+		queue_.getBuffer().setDurability(60 * 60 * 1000, Integer.MAX_VALUE);
+	}
+
+	@Test
+	public void keepsTimestampOfNewAggregate() throws Exception {
+		clock_.now = 1400000001999L;
+		queue_.recordEvent("level", 1);
+
+		assertEquals(1400000001, only().getInt("timestamp"));
+	}
+
+	@Test
+	public void averagesTimestampsWithoutOverflow() throws Exception {
+		clock_.now = (Integer.MAX_VALUE - 10) * 1000L;
+		queue_.recordEvent("level", 1);
+		clock_.now = (Integer.MAX_VALUE - 2) * 1000L;
+		queue_.recordEvent("level", 1);
+
+		JSONObject event = only();
+		assertEquals(Integer.MAX_VALUE - 6, event.getInt("timestamp"));
+		assertEquals(2, event.getInt("count"));
+	}
+
+	@Test
+	public void averagesCurrentTimestamps() throws Exception {
+		// Sum of these two is above Integer.MAX_VALUE already
+		clock_.now = 1700000000000L;
+		queue_.recordEvent("level", 1);
+		clock_.now = 1700000100000L;
+		queue_.recordEvent("level", 1);
+
+		assertEquals(1700000050, only().getInt("timestamp"));
+	}
+
+	@Test
+	public void drainsNothingFromEmptyQueue() {
+		assertNull(queue_.events());
+
+		queue_.recordEvent("level", 1);
+		assertNotNull(queue_.events());
+		assertNull(queue_.events());
+		assertEquals(0, queue_.size());
+	}
+
+	/**
+	 * @return the only event drained from queue, as sent to server
+	 */
+	private JSONObject only() throws Exception {
+		JSONArray events = new JSONArray(URLDecoder.decode(queue_.events(), "UTF-8"));
+		assertEquals(1, events.length());
+		return events.getJSONObject(0);
+	}
+}
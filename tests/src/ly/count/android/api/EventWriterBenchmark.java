@@ -0,0 +1,87 @@
+package ly.count.android.api;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+/**
+ * EventWriter against the way events used to be serialized: JSONObject per event, JSONArray around them,
+ * toString() and URLEncoder.encode(). Time and heap allocation per event for 10, 100 and 10000 events.
+ */
+public class EventWriterBenchmark {
+	private static String jsonArray(List<Event> events) {
+		JSONArray array = new JSONArray();
+
+		for (Event event : events) {
+			JSONObject json = new JSONObject();
+			try {
+				json.put("key", event.key);
+				json.put("count", event.count);
+				json.put("sum", event.sum);
+				json.put("timestamp", event.timestamp);
+				if (event.segmentation != null)
+					json.put("segmentation", new JSONObject(event.segmentation));
+			} catch (JSONException e) {
+				throw new IllegalStateException(e);
+			}
+			array.put(json);
+		}
+
+		try {
+			return URLEncoder.encode(array.toString(), "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Test
+	public void write() {
+		for (int count : new int[]{10, 100, 10000}) {
+			final List<Event> events = events(count);
+
+			Benchmarks.Task old = new Benchmarks.Task() {
+				@Override
+				public Object run() {
+					return jsonArray(events);
+				}
+			};
+			Benchmarks.Task writer = new Benchmarks.Task() {
+				@Override
+				public Object run() {
+					return EventWriter.write(events);
+				}
+			};
+
+			Benchmarks.time("old: JSONArray + URLEncoder, " + count + " events", count, old);
+			Benchmarks.time("EventWriter, " + count + " events", count, writer);
+			Benchmarks.allocation("old: JSONArray + URLEncoder, " + count + " events", count, old);
+			Benchmarks.allocation("EventWriter, " + count + " events", count, writer);
+		}
+	}
+
+	private static List<Event> events(int count) {
+		List<Event> events = new ArrayList<Event>(count);
+		for (int i = 0; i < count; i++) {
+			Map<String, String> segmentation = new HashMap<String, String>();
+			segmentation.put("level", "level-" + i);
+			segmentation.put("country", "München");
+
+			Event event = new Event();
+			event.key = i % 3 == 0 ? "purchase" : "level_complete";
+			event.segmentation = segmentation;
+			event.count = i % 5 + 1;
+			event.sum = i % 3 == 0 ? 4.99 * event.count : 0;
+			event.timestamp = 1400000000 + i;
+			events.add(event);
+		}
+		return events;
+	}
+}
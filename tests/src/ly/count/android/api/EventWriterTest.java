@@ -0,0 +1,115 @@
+package ly.count.android.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONStringer;
+import org.junit.Test;
+
+/**
+ * Checks EventWriter against the way events used to be serialized: JSONArray of JSONObjects, URL-encoded.
+ * Key order of JSONObject differs between Android versions, so expected output is written with JSONStringer
+ * JSONObject uses, in EventWriter's key order, and escaping and number formatting are compared byte for byte.
+ */
+public class EventWriterTest {
+	@Test
+	public void writesPlainEvents() throws Exception {
+		assertSameAsJSON(Arrays.asList(event("launch", 1, 0, 1400000000, null), event("purchase", 3, 12.75, 1400000001, null)));
+	}
+
+	@Test
+	public void writesEmptyArray() throws Exception {
+		assertEquals(encode(new JSONArray().toString()), EventWriter.write(new ArrayList<Event>()));
+		assertSameAsJSON(new ArrayList<Event>());
+	}
+
+	@Test
+	public void writesSegmentation() throws Exception {
+		Map<String, String> segmentation = new LinkedHashMap<String, String>();
+		segmentation.put("country", "Germany");
+		segmentation.put("empty", "");
+
+		assertSameAsJSON(Arrays.asList(event("purchase", 1, 0, 1, segmentation), event("purchase", 2, 0, 2, new HashMap<String, String>())));
+	}
+
+	@Test
+	public void escapesStrings() throws Exception {
+		Map<String, String> segmentation = new LinkedHashMap<String, String>();
+		segmentation.put("quote \" backslash \\ slash / </script>", "tab \t newline \n return \r backspace \b feed \f control \u0001 \u001f \u007f");
+		segmentation.put("M\u00fcnchen", "\u6771\u4eac \ud83d\ude00 + & = % *._-");
+
+		assertSameAsJSON(Arrays.asList(event("key with spaces & symbols", 1, 0, 1, segmentation)));
+	}
+
+	@Test
+	public void writesNumbersLikeJSONObject() throws Exception {
+		assertSameAsJSON(Arrays.asList(event("a", Integer.MAX_VALUE, 1e20, 1, null), event("b", 0, -0.5, 0, null),
+				event("c", -1, 1.0 / 3, -1, null), event("d", 1, 100.0, 1, null), event("e", 1, -0.0, Integer.MIN_VALUE, null),
+				event("f", 1, 9.223372036854775807E18, 1, null), event("g", 1, 1e-7, 1, null)));
+	}
+
+	@Test
+	public void replacesUnpairedSurrogatesLikeURLEncoder() {
+		StringBuilder out = new StringBuilder();
+		new EventWriter(out).write(event("\ud83d", 1, 0, 1, null));
+
+		assertTrue(out.toString().startsWith(encode("{\"key\":\"\ud83d\",")));
+	}
+
+	/**
+	 * Output has to be exactly what URLEncoder produces for JSON written by JSONStringer, which is what
+	 * JSONObject.toString() uses, with keys written in the same order.
+	 */
+	private static void assertSameAsJSON(List<Event> events) throws JSONException {
+		JSONStringer expected = new JSONStringer().array();
+		for (Event event : events) {
+			expected.object()
+					.key("key").value(event.key)
+					.key("count").value(event.count)
+					.key("sum").value(event.sum)
+					.key("timestamp").value(event.timestamp);
+
+			if (event.segmentation != null) {
+				expected.key("segmentation").object();
+				for (Map.Entry<String, String> entry : event.segmentation.entrySet()) {
+					expected.key(entry.getKey()).value(entry.getValue());
+				}
+				expected.endObject();
+			}
+
+			expected.endObject();
+		}
+		expected.endArray();
+
+		assertEquals(encode(expected.toString()), EventWriter.write(events));
+	}
+
+	private static Event event(String key, int count, double sum, int timestamp, Map<String, String> segmentation) {
+		Event event = new Event();
+		event.key = key;
+		event.count = count;
+		event.sum = sum;
+		event.timestamp = timestamp;
+		event.segmentation = segmentation;
+		return event;
+	}
+
+	private static String encode(String value) {
+		try {
+			return URLEncoder.encode(value, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
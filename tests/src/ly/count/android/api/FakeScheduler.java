@@ -0,0 +1,180 @@
+package ly.count.android.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ScheduledExecutorService running tasks on the calling thread of advance(), in virtual time which is
+ * also exposed as Clock. Nothing runs by itself, so tests see exactly which task ran when.
+ */
+class FakeScheduler extends AbstractExecutorService implements ScheduledExecutorService, Clock {
+	private final List<Task> tasks_ = new ArrayList<Task>();
+	private long now_ = 0;
+	private boolean shutdown_ = false;
+
+	private class Task implements ScheduledFuture<Object> {
+		final Runnable runnable;
+		final long period;
+		long time;
+		boolean cancelled = false;
+		boolean done = false;
+
+		Task(Runnable runnable, long delay, long period) {
+			this.runnable = runnable;
+			this.period = period;
+			time = now_ + delay;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(time - now_, TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed o) {
+			long diff = getDelay(TimeUnit.MILLISECONDS) - o.getDelay(TimeUnit.MILLISECONDS);
+			return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			if (done)
+				return false;
+			cancelled = true;
+			tasks_.remove(this);
+			return true;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		@Override
+		public boolean isDone() {
+			return done || cancelled;
+		}
+
+		@Override
+		public Object get() {
+			return null;
+		}
+
+		@Override
+		public Object get(long timeout, TimeUnit unit) {
+			return null;
+		}
+	}
+
+	/**
+	 * Moves time forward by millis, running every task which gets due in order of due times.
+	 */
+	void advance(long millis) {
+		long end = now_ + millis;
+
+		while (true) {
+			Task next = null;
+			for (Task task : tasks_) {
+				if (task.time <= end && (next == null || task.time < next.time))
+					next = task;
+			}
+			if (next == null)
+				break;
+
+			now_ = next.time;
+			tasks_.remove(next);
+			next.runnable.run();
+
+			if (next.period > 0 && !next.cancelled) {
+				next.time = now_ + next.period;
+				tasks_.add(next);
+			} else {
+				next.done = true;
+			}
+		}
+
+		now_ = end;
+	}
+
+	/**
+	 * @return number of tasks waiting to run, periodic ones included
+	 */
+	int getPending() {
+		return tasks_.size();
+	}
+
+	@Override
+	public long currentTimeMillis() {
+		return now_;
+	}
+
+	@Override
+	public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+		return add(new Task(command, unit.toMillis(delay), 0));
+	}
+
+	@Override
+	public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+		return add(new Task(command, unit.toMillis(initialDelay), unit.toMillis(period)));
+	}
+
+	@Override
+	public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+		// Tasks take no virtual time, so fixed delay and fixed rate are the same here
+		return add(new Task(command, unit.toMillis(initialDelay), unit.toMillis(delay)));
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		add(new Task(command, 0, 0));
+	}
+
+	@Override
+	public void shutdown() {
+		shutdown_ = true;
+	}
+
+	@Override
+	public List<Runnable> shutdownNow() {
+		shutdown_ = true;
+		List<Runnable> pending = new ArrayList<Runnable>();
+		for (Task task : tasks_) {
+			pending.add(task.runnable);
+		}
+		tasks_.clear();
+		return pending;
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return shutdown_;
+	}
+
+	@Override
+	public boolean isTerminated() {
+		return shutdown_ && tasks_.isEmpty();
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) {
+		return isTerminated();
+	}
+
+	private Task add(Task task) {
+		if (shutdown_)
+			throw new IllegalStateException("Shut down");
+		tasks_.add(task);
+		return task;
+	}
+}
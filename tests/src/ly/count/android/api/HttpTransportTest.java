@@ -0,0 +1,61 @@
+package ly.count.android.api;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HttpTransportTest {
+	private LoopbackServer server_;
+	private final HttpTransport transport_ = new HttpTransport(5000, 5000);
+
+	@Before
+	public void setUp() throws IOException {
+		server_ = new LoopbackServer();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		server_.close();
+	}
+
+	@Test
+	public void reusesConnectionAcrossRequests() throws IOException {
+		for (int i = 0; i < 20; i++) {
+			assertEquals(200, transport_.get(server_.url() + "/i?app_key=key&session_duration=" + i));
+			assertEquals(200, transport_.post(server_.url() + "/i/bulk", "app_key=key&requests=%5B%5D".getBytes("UTF-8"), null));
+		}
+
+		assertEquals(40, server_.getRequests());
+		assertEquals(1, server_.getConnections());
+		assertEquals("/i?app_key=key&session_duration=0", server_.getPaths().get(0));
+	}
+
+	@Test
+	public void reusesConnectionAfterErrorResponses() throws IOException {
+		server_.respond(500, "{\"result\":\"Error\"}".getBytes("UTF-8"), null);
+		assertEquals(500, transport_.get(server_.url() + "/i?app_key=key"));
+		assertEquals(500, transport_.get(server_.url() + "/i?app_key=key"));
+
+		server_.respond(400, new byte[0], null);
+		assertEquals(400, transport_.get(server_.url() + "/i?app_key=key"));
+
+		server_.respond(200, "{}".getBytes("UTF-8"), null);
+		assertEquals(200, transport_.get(server_.url() + "/i?app_key=key"));
+
+		assertEquals(1, server_.getConnections());
+	}
+
+	@Test
+	public void returnsStatusOfUndecodableResponse() throws IOException {
+		// Body claims to be gzip-compressed but isn't, it's drained as is
+		server_.respond(200, "not gzip at all".getBytes("UTF-8"), "gzip");
+
+		assertEquals(200, transport_.get(server_.url() + "/i?app_key=key"));
+		assertEquals(200, transport_.post(server_.url() + "/i", new byte[]{1, 2, 3}, "gzip"));
+		assertEquals(1, server_.getConnections());
+	}
+}
@@ -0,0 +1,169 @@
+package ly.count.android.api;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal HTTP/1.1 server on loopback interface which keeps connections alive and counts
+ * how many of them clients opened, that is how many TCP handshakes requests took.
+ */
+class LoopbackServer {
+	private final ServerSocket socket_;
+	private final AtomicInteger connections_ = new AtomicInteger();
+	private final AtomicInteger requests_ = new AtomicInteger();
+	private final List<String> paths_ = Collections.synchronizedList(new ArrayList<String>());
+	private final List<Socket> clients_ = Collections.synchronizedList(new ArrayList<Socket>());
+	private volatile int status_ = 200;
+	private volatile byte[] body_ = "{\"result\":\"Success\"}".getBytes();
+	private volatile String contentEncoding_ = null;
+
+	LoopbackServer() throws IOException {
+		socket_ = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "Loopback server");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	String url() {
+		return "http://127.0.0.1:" + socket_.getLocalPort();
+	}
+
+	/**
+	 * Sets response sent to all following requests.
+	 */
+	void respond(int status, byte[] body, String contentEncoding) {
+		status_ = status;
+		body_ = body;
+		contentEncoding_ = contentEncoding;
+	}
+
+	int getConnections() {
+		return connections_.get();
+	}
+
+	int getRequests() {
+		return requests_.get();
+	}
+
+	List<String> getPaths() {
+		return paths_;
+	}
+
+	void close() throws IOException {
+		socket_.close();
+		synchronized (clients_) {
+			for (Socket client : clients_) {
+				client.close();
+			}
+		}
+	}
+
+	private void accept() {
+		while (true) {
+			final Socket client;
+			try {
+				client = socket_.accept();
+			} catch (IOException e) {
+				return;
+			}
+
+			connections_.incrementAndGet();
+			clients_.add(client);
+			try {
+				client.setTcpNoDelay(true);
+			} catch (IOException e) {
+			}
+
+			Thread handler = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						serve(client);
+					} catch (IOException e) {
+						// Client went away
+					} finally {
+						try {
+							client.close();
+						} catch (IOException e) {
+						}
+					}
+				}
+			}, "Loopback connection");
+			handler.setDaemon(true);
+			handler.start();
+		}
+	}
+
+	private void serve(Socket client) throws IOException {
+		InputStream input = new BufferedInputStream(client.getInputStream());
+		OutputStream output = client.getOutputStream();
+
+		String requestLine;
+		while ((requestLine = readLine(input)) != null) {
+			int length = 0;
+			boolean close = false;
+			String header;
+			while ((header = readLine(input)) != null && header.length() > 0) {
+				String name = header.substring(0, header.indexOf(':')).trim();
+				String value = header.substring(header.indexOf(':') + 1).trim();
+				if (name.equalsIgnoreCase("Content-Length"))
+					length = Integer.parseInt(value);
+				else if (name.equalsIgnoreCase("Connection") && value.equalsIgnoreCase("close"))
+					close = true;
+			}
+
+			for (int i = 0; i < length; i++) {
+				if (input.read() == -1)
+					return;
+			}
+
+			requests_.incrementAndGet();
+			paths_.add(requestLine.split(" ")[1]);
+
+			byte[] body = body_;
+			StringBuilder response = new StringBuilder();
+			response.append("HTTP/1.1 ").append(status_).append(" Status\r\n");
+			response.append("Content-Type: application/json\r\n");
+			response.append("Content-Length: ").append(body.length).append("\r\n");
+			if (contentEncoding_ != null)
+				response.append("Content-Encoding: ").append(contentEncoding_).append("\r\n");
+			response.append("\r\n");
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			bytes.write(response.toString().getBytes("US-ASCII"));
+			bytes.write(body);
+			output.write(bytes.toByteArray());
+			output.flush();
+
+			if (close)
+				return;
+		}
+	}
+
+	private static String readLine(InputStream input) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int c;
+		while ((c = input.read()) != -1) {
+			if (c == '\n')
+				return line.toString("US-ASCII").trim();
+			line.write(c);
+		}
+		return line.size() == 0 ? null : line.toString("US-ASCII");
+	}
+}
@@ -0,0 +1,55 @@
+package ly.count.android.api;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * EventStore keeping copies of saved events in memory, keyed the same way CountlyDB rows are.
+ */
+class MemoryEventStore implements EventStore {
+	private final LinkedHashMap<EventKey, Event> events_ = new LinkedHashMap<EventKey, Event>();
+	private int saves_ = 0;
+
+	@Override
+	public synchronized List<Event> getEvents() {
+		ArrayList<Event> events = new ArrayList<Event>();
+		for (Event event : events_.values()) {
+			events.add(copy(event));
+		}
+		return events;
+	}
+
+	@Override
+	public synchronized void saveEvents(Collection<Event> events) {
+		for (Event event : events) {
+			events_.put(new EventKey(event.key, event.segmentation).freeze(), copy(event));
+		}
+		saves_++;
+	}
+
+	@Override
+	public synchronized void deleteEvents(Collection<Event> events) {
+		for (Event event : events) {
+			events_.remove(new EventKey(event.key, event.segmentation));
+		}
+	}
+
+	/**
+	 * @return number of saveEvents() calls, that is transactions CountlyDB would run
+	 */
+	synchronized int getSaves() {
+		return saves_;
+	}
+
+	private static Event copy(Event event) {
+		Event copy = new Event();
+		copy.key = event.key;
+		copy.segmentation = event.segmentation;
+		copy.count = event.count;
+		copy.sum = event.sum;
+		copy.timestamp = event.timestamp;
+		return copy;
+	}
+}
@@ -0,0 +1,107 @@
+package ly.count.android.api;
+
+import org.junit.Test;
+
+/**
+ * Time and heap allocation per request: RequestBuilder against the way requests used to be built,
+ * with repeated String += and regular expression based UDID substitution before sending.
+ */
+public class RequestBuilderBenchmark {
+	private static final int REQUESTS = 10000;
+	private static final String APP_KEY = "0123456789abcdef0123456789abcdef";
+	private static final String UDID = "3f2a11e4-b8c1-4d5e-9f60-7a8b9c0d1e2f";
+	private static final String DIMENSIONS = "%7B%22push%22%3A%22true%22%7D";
+	private static final String EVENTS = "%5B%7B%22key%22%3A%22purchase%22%2C%22count%22%3A1%2C%22sum%22%3A3.5%2C%22timestamp%22%3A1400000000%7D%5D";
+
+	private static String concatenated(String udid, int duration) {
+		String data;
+		data = "app_key=" + APP_KEY;
+		data += "&" + "device_id=" + udid;
+		data += "&" + "timestamp=" + (long) (System.currentTimeMillis() / 1000.0);
+		data += "&" + "session_duration=" + duration;
+		data += "&dimensions=" + DIMENSIONS;
+		return data;
+	}
+
+	private static String concatenatedEvents(String udid) {
+		String data;
+		data = "app_key=" + APP_KEY;
+		data += "&" + "device_id=" + udid;
+		data += "&" + "timestamp=" + (long) (System.currentTimeMillis() / 1000.0);
+		data += "&" + "events=" + EVENTS;
+		data += "&dimensions=" + DIMENSIONS;
+		return data;
+	}
+
+	private static final Benchmarks.Task OLD_SESSION = new Benchmarks.Task() {
+		@Override
+		public Object run() {
+			int length = 0;
+			for (int i = 0; i < REQUESTS; i++) {
+				length += concatenated(UDID, i).length();
+			}
+			return length;
+		}
+	};
+
+	private static final Benchmarks.Task NEW_SESSION = new Benchmarks.Task() {
+		@Override
+		public Object run() {
+			int length = 0;
+			for (int i = 0; i < REQUESTS; i++) {
+				length += RequestBuilder.obtain(APP_KEY, UDID, System.currentTimeMillis() / 1000)
+						.param("session_duration", i)
+						.optional("dimensions", DIMENSIONS)
+						.build().length();
+			}
+			return length;
+		}
+	};
+
+	private static final Benchmarks.Task OLD_EVENTS_UNBOUND = new Benchmarks.Task() {
+		@Override
+		public Object run() {
+			int length = 0;
+			for (int i = 0; i < REQUESTS; i++) {
+				String data = concatenatedEvents("REPLACE_UDID");
+				if (data.indexOf("REPLACE_UDID") != -1)
+					data = data.replaceFirst("REPLACE_UDID", UDID);
+				length += data.length();
+			}
+			return length;
+		}
+	};
+
+	private static final Benchmarks.Task NEW_EVENTS_UNBOUND = new Benchmarks.Task() {
+		@Override
+		public Object run() {
+			int length = 0;
+			for (int i = 0; i < REQUESTS; i++) {
+				String data = RequestBuilder.obtain(APP_KEY, RequestBuilder.UDID_PLACEHOLDER, System.currentTimeMillis() / 1000)
+						.param("events", EVENTS)
+						.optional("dimensions", DIMENSIONS)
+						.build();
+				if (RequestBuilder.hasUdidPlaceholder(data))
+					data = RequestBuilder.bindUdid(data, UDID);
+				length += data.length();
+			}
+			return length;
+		}
+	};
+
+	@Test
+	public void sessionUpdate() {
+		Benchmarks.time("old: String += session update", REQUESTS, OLD_SESSION);
+		Benchmarks.time("RequestBuilder session update", REQUESTS, NEW_SESSION);
+		Benchmarks.allocation("old: String += session update", REQUESTS, OLD_SESSION);
+		Benchmarks.allocation("RequestBuilder session update", REQUESTS, NEW_SESSION);
+	}
+
+	@Test
+	public void eventsWithUdidBinding() {
+		Benchmarks.time("old: String += events, replaceFirst() UDID", REQUESTS, OLD_EVENTS_UNBOUND);
+		Benchmarks.time("RequestBuilder events, bindUdid()", REQUESTS, NEW_EVENTS_UNBOUND);
+		Benchmarks.allocation("old: String += events, replaceFirst() UDID", REQUESTS, OLD_EVENTS_UNBOUND);
+		Benchmarks.allocation("RequestBuilder events, bindUdid()", REQUESTS, NEW_EVENTS_UNBOUND);
+	}
+}
@@ -0,0 +1,45 @@
+package ly.count.android.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class RequestBuilderTest {
+	@Test
+	public void buildsQueryString() {
+		String data = RequestBuilder.obtain("key", "device", 1400000000).param("session_duration", 30)
+				.param("metrics", "%7B%7D").optional("dimensions", null).build();
+
+		assertEquals("app_key=key&device_id=device&timestamp=1400000000&session_duration=30&metrics=%7B%7D", data);
+		assertEquals("app_key=key&device_id=device&timestamp=1&end_session=1",
+				RequestBuilder.obtain("key", "device", 1).param("end_session", 1).build());
+	}
+
+	@Test
+	public void bindsUdidPlaceholder() {
+		String data = RequestBuilder.obtain("key", RequestBuilder.UDID_PLACEHOLDER, 1).param("events", "REPLACE_UDID").build();
+
+		assertTrue(RequestBuilder.hasUdidPlaceholder(data));
+		String bound = RequestBuilder.bindUdid(data, "3f2a11e4");
+		assertEquals("app_key=key&device_id=3f2a11e4&timestamp=1&events=REPLACE_UDID", bound);
+		assertFalse(RequestBuilder.hasUdidPlaceholder(bound));
+		assertEquals(bound, RequestBuilder.bindUdid(bound, "other"));
+	}
+
+	@Test
+	public void doesNotRetainLargeBuffer() {
+		char[] events = new char[RequestBuilder.MAX_RETAINED_CAPACITY * 4];
+		Arrays.fill(events, 'e');
+
+		RequestBuilder builder = RequestBuilder.obtain("key", "device", 1).param("events", new String(events));
+		assertTrue(builder.capacity() > RequestBuilder.MAX_RETAINED_CAPACITY);
+		assertEquals(events.length, Requests.param(builder.build(), "events").length());
+
+		assertTrue(builder.capacity() <= RequestBuilder.MAX_RETAINED_CAPACITY);
+		assertEquals("app_key=key&device_id=device&timestamp=2", RequestBuilder.obtain("key", "device", 2).build());
+	}
+}
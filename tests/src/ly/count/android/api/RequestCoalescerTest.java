@@ -0,0 +1,98 @@
+package ly.count.android.api;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class RequestCoalescerTest {
+	private static final String ORIGIN = "app_key=key&device_id=device&timestamp=1400000000";
+	private static final String OTHER_DEVICE = "app_key=key&device_id=other&timestamp=1400000000";
+
+	private final RequestCoalescer coalescer_ = new RequestCoalescer();
+
+	@Test
+	public void sumsConsecutiveSessionUpdates() {
+		List<Connection> result = coalesce(ORIGIN + "&session_duration=30", ORIGIN + "&session_duration=45", ORIGIN + "&session_duration=15");
+
+		assertEquals(1, result.size());
+		assertEquals(3, result.get(0).id);
+		assertEquals(ORIGIN + "&session_duration=90", result.get(0).data);
+		assertEquals(2, result.get(0).merged);
+	}
+
+	@Test
+	public void concatenatesConsecutiveEvents() {
+		List<Connection> result = coalesce(ORIGIN + "&events=%5B%7B%22key%22%3A%22a%22%7D%5D", ORIGIN + "&events=%5B%7B%22key%22%3A%22b%22%7D%5D");
+
+		assertEquals(1, result.size());
+		assertEquals(2, result.get(0).id);
+		assertEquals(ORIGIN + "&events=%5B%7B%22key%22%3A%22a%22%7D%2C%7B%22key%22%3A%22b%22%7D%5D", result.get(0).data);
+	}
+
+	@Test
+	public void keepsSessionBoundaries() {
+		assertEquals(3, coalesce(ORIGIN + "&session_duration=30", ORIGIN + "&sdk_version=2.0&begin_session=1", ORIGIN + "&session_duration=30").size());
+		assertEquals(2, coalesce(ORIGIN + "&session_duration=30", ORIGIN + "&end_session=1&session_duration=30").size());
+		assertEquals(2, coalesce(ORIGIN + "&events=%5B1%5D", ORIGIN + "&token_session=1&android_token=t&events=%5B2%5D").size());
+		assertEquals(2, coalesce(ORIGIN + "&session_duration=30", ORIGIN + "&events=%5B1%5D").size());
+	}
+
+	@Test
+	public void keepsDifferentOriginsAndDimensionsApart() {
+		assertEquals(2, coalesce(ORIGIN + "&session_duration=30", OTHER_DEVICE + "&session_duration=30").size());
+		assertEquals(2, coalesce(ORIGIN + "&session_duration=30&dimensions=%7B%7D", ORIGIN + "&session_duration=30").size());
+		assertEquals(2, coalesce(ORIGIN + "&events=%5B1%5D&dimensions=a", ORIGIN + "&events=%5B2%5D&dimensions=b").size());
+		assertEquals(1, coalesce(ORIGIN + "&events=%5B1%5D&dimensions=a", ORIGIN + "&events=%5B2%5D&dimensions=a").size());
+	}
+
+	@Test
+	public void skipsEmptyEventArrays() {
+		assertEquals(2, coalesce(ORIGIN + "&events=%5B%5D", ORIGIN + "&events=%5B1%5D").size());
+	}
+
+	@Test
+	public void respectsMaxLength() {
+		String first = ORIGIN + "&events=%5B1%5D";
+		String prefix = ORIGIN + "&events=%5B";
+		// Merged request is the second one with "1%2C" inserted into its array
+		int padding = RequestCoalescer.MAX_LENGTH - prefix.length() - "1%2C".length() - "%5D".length();
+
+		assertEquals(1, coalesce(first, prefix + repeat('2', padding) + "%5D").size());
+		assertEquals(2, coalesce(first, prefix + repeat('2', padding + 1) + "%5D").size());
+	}
+
+	@Test
+	public void accountsSavingsOnlyOnceSent() {
+		String first = ORIGIN + "&session_duration=30";
+		String second = ORIGIN + "&session_duration=45";
+		Connection merged = coalesce(first, second).get(0);
+
+		assertEquals(first.length(), merged.saved);
+		assertEquals(0, coalescer_.getRequestsSaved());
+
+		coalescer_.sent(merged);
+		assertEquals(1, coalescer_.getRequestsSaved());
+		assertEquals(first.length(), coalescer_.getBytesSaved());
+	}
+
+	private List<Connection> coalesce(String... data) {
+		ArrayList<Connection> connections = new ArrayList<Connection>();
+		for (int i = 0; i < data.length; i++) {
+			Connection connection = new Connection();
+			connection.id = i + 1;
+			connection.data = data[i];
+			connections.add(connection);
+		}
+		return coalescer_.coalesce(connections);
+	}
+
+	private static String repeat(char c, int count) {
+		char[] chars = new char[count];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+}
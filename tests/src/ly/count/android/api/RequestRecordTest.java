@@ -0,0 +1,94 @@
+package ly.count.android.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class RequestRecordTest {
+	private static final String ORIGIN = "app_key=0123456789abcdef&device_id=" + encode("3f2a-11e4:b8") + "&timestamp=1400000000";
+
+	@Test
+	public void roundTripsBeginSession() {
+		String metrics = "{\"_device\":\"Nexus 5\",\"_os\":\"Android\",\"_os_version\":\"4.4.2\",\"_carrier\":\"T-Mobile\","
+				+ "\"_resolution\":\"1080x1776\",\"_locale\":\"en_US\",\"_app_version\":\"1.0\"}";
+		String data = ORIGIN + "&sdk_version=2.0&begin_session=1&metrics=" + encode(metrics);
+
+		byte[] record = assertRoundTrip(data);
+		assertTrue(record.length < data.length());
+	}
+
+	@Test
+	public void roundTripsEventsWithRepeatedStrings() {
+		String events = "[{\"key\":\"purchase\",\"count\":2,\"sum\":3.5,\"timestamp\":1400000000,\"segmentation\":{\"country\":\"Germany\"}},"
+				+ "{\"key\":\"purchase\",\"count\":1,\"sum\":0,\"timestamp\":1400000001,\"segmentation\":{\"country\":\"Germany\"}}]";
+
+		assertRoundTrip(ORIGIN + "&events=" + encode(events));
+	}
+
+	@Test
+	public void roundTripsSpecialCharacters() {
+		String events = "[{\"key\":\"a \\\"quoted\\\" \\\\ key\",\"count\":1,\"sum\":0,\"timestamp\":1,\"segmentation\":{\"city\":\"M\u00fcnchen \u6771\u4eac \ud83d\ude00\"}}]";
+
+		assertRoundTrip(ORIGIN + "&events=" + encode(events));
+	}
+
+	@Test
+	public void roundTripsUnknownNamesAndEdgeValues() {
+		assertRoundTrip(ORIGIN + "&custom=value&empty=&session_duration=0");
+		assertRoundTrip(ORIGIN + "&session_duration=007");
+		assertRoundTrip(ORIGIN + "&big=123456789012345678901234567890");
+		assertRoundTrip(ORIGIN + "&unterminated=" + encode("{\"key\":\"abc"));
+	}
+
+	@Test
+	public void rejectsRequestsWhichWouldChangeOnRoundTrip() {
+		// Lowercase hex, unencoded characters and malformed escapes aren't what URLEncoder produces
+		assertNull(RequestRecord.encode(ORIGIN + "&metrics=%7b%7d"));
+		assertNull(RequestRecord.encode(ORIGIN + "&metrics=a%20b"));
+		assertNull(RequestRecord.encode(ORIGIN + "&metrics={}"));
+		assertNull(RequestRecord.encode(ORIGIN + "&metrics=%ZZ"));
+		assertNull(RequestRecord.encode(ORIGIN + "&metrics=%7"));
+		assertNull(RequestRecord.encode(ORIGIN + "&metrics=\u00fc"));
+		assertNull(RequestRecord.encode(ORIGIN + "&no_value"));
+	}
+
+	@Test
+	public void rejectsMalformedRecords() {
+		assertNull(RequestRecord.decode(null));
+		assertNull(RequestRecord.decode(new byte[0]));
+
+		byte[] record = RequestRecord.encode(ORIGIN + "&events=" + encode("[{\"key\":\"a\"}]"));
+		assertNotNull(record);
+
+		byte[] newer = record.clone();
+		newer[0] = RequestRecord.VERSION + 1;
+		assertNull(RequestRecord.decode(newer));
+
+		for (int length = 1; length < record.length; length++) {
+			String decoded = RequestRecord.decode(Arrays.copyOf(record, length));
+			assertTrue(decoded == null || !decoded.equals(RequestRecord.decode(record)));
+		}
+	}
+
+	private static byte[] assertRoundTrip(String data) {
+		byte[] record = RequestRecord.encode(data);
+		assertNotNull(data, record);
+		assertEquals(data, RequestRecord.decode(record));
+		return record;
+	}
+
+	private static String encode(String value) {
+		try {
+			return URLEncoder.encode(value, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
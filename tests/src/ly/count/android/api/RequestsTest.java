@@ -0,0 +1,46 @@
+package ly.count.android.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RequestsTest {
+	private static final String ORIGIN = "app_key=key&device_id=device&timestamp=1400000000";
+
+	@Test
+	public void readsAndReplacesParameters() {
+		String data = ORIGIN + "&session_duration=30&xsession_duration=1";
+
+		assertEquals("30", Requests.param(data, "session_duration"));
+		assertEquals(30, Requests.intParam(data, "session_duration"));
+		assertNull(Requests.param(data, "duration"));
+		assertEquals(0, Requests.intParam(ORIGIN + "&session_duration=abc", "session_duration"));
+
+		assertEquals(ORIGIN + "&session_duration=75&xsession_duration=1", Requests.setParam(data, "session_duration", "75"));
+		assertEquals(ORIGIN + "&end_session=1", Requests.setParam(ORIGIN, "end_session", "1"));
+	}
+
+	@Test
+	public void recognizesSessionUpdates() {
+		assertTrue(Requests.isSessionUpdate(ORIGIN + "&session_duration=30"));
+		assertTrue(Requests.isSessionUpdate(ORIGIN + "&session_duration=30&dimensions=%7B%7D"));
+		assertFalse(Requests.isSessionUpdate(ORIGIN + "&end_session=1&session_duration=30"));
+		assertFalse(Requests.isSessionUpdate(ORIGIN + "&sdk_version=2.0&begin_session=1"));
+		assertFalse(Requests.isSessionUpdate(ORIGIN + "&events=%5B%5D"));
+	}
+
+	@Test
+	public void requiresSameAppDeviceAndDimensionsToMerge() {
+		String update = ORIGIN + "&session_duration=30";
+
+		assertTrue(Requests.sameOrigin(update, ORIGIN + "&session_duration=45"));
+		assertFalse(Requests.sameOrigin(update, "app_key=other&device_id=device&session_duration=45"));
+		assertFalse(Requests.sameOrigin(update, "app_key=key&device_id=other&session_duration=45"));
+		assertFalse(Requests.sameOrigin(update, update + "&dimensions=%7B%22push%22%3A%22true%22%7D"));
+		assertTrue(Requests.sameOrigin(update + "&dimensions=a", ORIGIN + "&session_duration=45&dimensions=a"));
+		assertFalse(Requests.sameOrigin(update + "&dimensions=a", ORIGIN + "&session_duration=45&dimensions=b"));
+	}
+}
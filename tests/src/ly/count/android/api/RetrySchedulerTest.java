@@ -0,0 +1,140 @@
+package ly.count.android.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class RetrySchedulerTest {
+	private static final long BASE_DELAY = 1000;
+	private static final long MAX_DELAY = 60 * 1000;
+
+	private static class FakeClock implements Clock {
+		long now = 1000000;
+
+		@Override
+		public long currentTimeMillis() {
+			return now;
+		}
+	}
+
+	/**
+	 * Always returns the same "random" value.
+	 */
+	private static class FixedRandom extends Random {
+		private final double value_;
+
+		FixedRandom(double value) {
+			value_ = value;
+		}
+
+		@Override
+		public double nextDouble() {
+			return value_;
+		}
+	}
+
+	private final FakeClock clock_ = new FakeClock();
+
+	@Test
+	public void classifiesStatuses() {
+		assertEquals(RetryScheduler.SUCCESS, RetryScheduler.classify(200));
+		assertEquals(RetryScheduler.SUCCESS, RetryScheduler.classify(204));
+		assertEquals(RetryScheduler.FAILURE_CLIENT, RetryScheduler.classify(400));
+
+		for (int status : new int[]{-1, 301, 302, 307, 401, 403, 404, 408, 429, 500, 502, 503}) {
+			assertEquals(String.valueOf(status), RetryScheduler.FAILURE_SERVER, RetryScheduler.classify(status));
+			assertTrue(RetryScheduler.isRetryable(RetryScheduler.classify(status)));
+		}
+
+		assertTrue(RetryScheduler.isRetryable(RetryScheduler.FAILURE_NETWORK));
+		assertFalse(RetryScheduler.isRetryable(RetryScheduler.FAILURE_CLIENT));
+		assertFalse(RetryScheduler.isRetryable(RetryScheduler.SUCCESS));
+	}
+
+	@Test
+	public void doublesDelayUpToMaximum() {
+		// Lower bound of jitter: exactly half of backoff delay
+		RetryScheduler retry = new RetryScheduler(clock_, new FixedRandom(0), BASE_DELAY, MAX_DELAY);
+
+		long[] expected = {500, 1000, 2000, 4000, 8000, 16000, 30000, 30000};
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i], retry.onFailure());
+			assertEquals(i + 1, retry.getFailures());
+		}
+
+		// Shift doesn't overflow into negative or tiny delays after many failures
+		for (int i = 0; i < 100; i++) {
+			assertEquals(30000, retry.onFailure());
+		}
+	}
+
+	@Test
+	public void keepsJitterWithinUpperHalfOfDelay() {
+		RetryScheduler retry = new RetryScheduler(clock_, new Random(42), BASE_DELAY, MAX_DELAY);
+		long min = Long.MAX_VALUE;
+		long max = 0;
+
+		for (int i = 0; i < 1000; i++) {
+			retry.reset();
+			long delay = retry.onFailure();
+			assertTrue(delay >= BASE_DELAY / 2 && delay < BASE_DELAY);
+			min = Math.min(min, delay);
+			max = Math.max(max, delay);
+
+			for (int failures = 2; failures < 12; failures++) {
+				long backoff = Math.min(BASE_DELAY << (failures - 1), MAX_DELAY);
+				delay = retry.onFailure();
+				assertTrue(delay + " for " + backoff, delay >= backoff / 2 && delay < backoff);
+			}
+		}
+
+		// Jitter actually spreads retries
+		assertTrue(min < BASE_DELAY / 2 + 50);
+		assertTrue(max > BASE_DELAY - 50);
+	}
+
+	@Test
+	public void closesGateUntilRetryTime() {
+		RetryScheduler retry = new RetryScheduler(clock_, new FixedRandom(0.5), BASE_DELAY, MAX_DELAY);
+		assertFalse(retry.isBackingOff());
+
+		long delay = retry.onFailure();
+		assertEquals(750, delay);
+		assertTrue(retry.isBackingOff());
+
+		clock_.now += delay - 1;
+		assertTrue(retry.isBackingOff());
+
+		clock_.now += 1;
+		assertFalse(retry.isBackingOff());
+	}
+
+	@Test
+	public void expireOpensGateButKeepsBackingOff() {
+		RetryScheduler retry = new RetryScheduler(clock_, new FixedRandom(0), BASE_DELAY, MAX_DELAY);
+		retry.onFailure();
+		retry.onFailure();
+		assertTrue(retry.isBackingOff());
+
+		retry.expire();
+		assertFalse(retry.isBackingOff());
+		assertEquals(2, retry.getFailures());
+		assertEquals(2000, retry.onFailure());
+	}
+
+	@Test
+	public void resetStartsOver() {
+		RetryScheduler retry = new RetryScheduler(clock_, new FixedRandom(0), BASE_DELAY, MAX_DELAY);
+		retry.onFailure();
+		retry.onFailure();
+
+		retry.reset();
+		assertFalse(retry.isBackingOff());
+		assertEquals(0, retry.getFailures());
+		assertEquals(500, retry.onFailure());
+	}
+}
@@ -0,0 +1,90 @@
+package ly.count.android.api;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+/**
+ * Decoding the segmentation column of a stored event backlog with SegmentationReader against
+ * what getEvents() used to do for every row: parse into JSONObject, then copy into a HashMap.
+ * Time and heap allocation per row for backlogs of 1000 and 50000 events, with and without escapes.
+ */
+public class SegmentationReaderBenchmark {
+	private static Map<String, String> jsonObject(String string) {
+		HashMap<String, String> segmentation = new HashMap<String, String>();
+
+		try {
+			JSONObject json = new JSONObject(string);
+			@SuppressWarnings("unchecked")
+			Iterator<String> nameItr = json.keys();
+
+			while (nameItr.hasNext()) {
+				String key = nameItr.next();
+				segmentation.put(key, json.getString(key));
+			}
+		} catch (JSONException e) {
+			throw new IllegalStateException(e);
+		}
+
+		return segmentation;
+	}
+
+	@Test
+	public void read() {
+		for (boolean escapes : new boolean[]{false, true}) {
+			for (int rows : new int[]{1000, 50000}) {
+				final List<String> backlog = backlog(rows, escapes);
+				String name = rows + " rows" + (escapes ? " with escapes" : "");
+
+				Benchmarks.Task old = new Benchmarks.Task() {
+					@Override
+					public Object run() {
+						int size = 0;
+						for (String string : backlog) {
+							size += jsonObject(string).size();
+						}
+						return size;
+					}
+				};
+				Benchmarks.Task reader = new Benchmarks.Task() {
+					@Override
+					public Object run() {
+						int size = 0;
+						for (String string : backlog) {
+							size += SegmentationReader.read(string).size();
+						}
+						return size;
+					}
+				};
+
+				Benchmarks.time("old: JSONObject, " + name, rows, old);
+				Benchmarks.time("SegmentationReader, " + name, rows, reader);
+				Benchmarks.allocation("old: JSONObject, " + name, rows, old);
+				Benchmarks.allocation("SegmentationReader, " + name, rows, reader);
+			}
+		}
+	}
+
+	/**
+	 * Segmentation column values as saveEvents() writes them.
+	 */
+	private static List<String> backlog(int rows, boolean escapes) {
+		List<String> backlog = new ArrayList<String>(rows);
+		for (int i = 0; i < rows; i++) {
+			Map<String, String> segmentation = new HashMap<String, String>();
+			segmentation.put("level", "level-" + i);
+			segmentation.put("mode", "campaign");
+			segmentation.put("difficulty", "normal");
+			if (escapes)
+				segmentation.put("screen", "menu/settings \"audio\"");
+			backlog.add(SegmentationReader.write(segmentation));
+		}
+		return backlog;
+	}
+}
@@ -0,0 +1,65 @@
+package ly.count.android.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class SegmentationReaderTest {
+	@Test
+	public void readsNothingFromEmptyString() {
+		assertNull(SegmentationReader.read(null));
+		assertNull(SegmentationReader.read(""));
+	}
+
+	@Test
+	public void readsFlatObject() {
+		Map<String, String> expected = new HashMap<String, String>();
+		expected.put("country", "Germany");
+		expected.put("plan", "");
+
+		assertEquals(expected, SegmentationReader.read("{\"country\":\"Germany\",\"plan\":\"\"}"));
+		assertEquals(expected, SegmentationReader.read(" { \"country\" : \"Germany\" ,\n\"plan\":\"\" } "));
+		assertEquals(new HashMap<String, String>(), SegmentationReader.read("{}"));
+	}
+
+	@Test
+	public void readsEscapes() {
+		Map<String, String> expected = new HashMap<String, String>();
+		expected.put("quote \" backslash \\ slash /", "\b\f\n\r\t \u00fc \ud83d\ude00");
+
+		assertEquals(expected, SegmentationReader.read("{\"quote \\\" backslash \\\\ slash \\/\":\"\\b\\f\\n\\r\\t \\u00FC \\ud83d\\ude00\"}"));
+	}
+
+	@Test
+	public void readsWhatItWrites() {
+		Map<String, String> segmentation = new HashMap<String, String>();
+		segmentation.put("a", "1");
+		segmentation.put("b \"c\"", "d\\e");
+
+		assertEquals(segmentation, SegmentationReader.read(SegmentationReader.write(segmentation)));
+	}
+
+	@Test
+	public void writesKeysSorted() {
+		Map<String, String> segmentation = new HashMap<String, String>();
+		segmentation.put("b", "2");
+		segmentation.put("a", "/");
+
+		assertEquals("{\"a\":\"\\/\",\"b\":\"2\"}", SegmentationReader.write(segmentation));
+		assertEquals("", SegmentationReader.write(new HashMap<String, String>()));
+		assertEquals("", SegmentationReader.write(null));
+	}
+
+	@Test
+	public void fallsBackToJSONObjectForOtherShapes() {
+		Map<String, String> expected = new HashMap<String, String>();
+		expected.put("level", "5");
+		expected.put("paid", "true");
+
+		assertEquals(expected, SegmentationReader.read("{\"level\":5,\"paid\":true}"));
+	}
+}
@@ -0,0 +1,56 @@
+package ly.count.android.api;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SessionLengthTest {
+	private final FakeScheduler clock_ = new FakeScheduler();
+	private final SessionLength length_ = new SessionLength();
+
+	@Before
+	public void setUp() {
+		clock_.advance(1400000000000L);
+		length_.setClock(clock_);
+	}
+
+	@Test
+	public void reportsWholeSecondsSinceStart() {
+		length_.start();
+		clock_.advance(60 * 1000);
+		assertEquals(60, length_.report());
+
+		clock_.advance(60 * 1000);
+		assertEquals(60, length_.report());
+		assertEquals(0, length_.report());
+	}
+
+	@Test
+	public void carriesFractionsIntoNextReport() {
+		length_.start();
+
+		clock_.advance(1500);
+		assertEquals(1, length_.report());
+		clock_.advance(1500);
+		assertEquals(2, length_.report());
+
+		clock_.advance(999);
+		assertEquals(0, length_.report());
+		clock_.advance(1);
+		assertEquals(1, length_.report());
+	}
+
+	@Test
+	public void doesNotCountTimeInBackground() {
+		length_.start();
+		clock_.advance(10 * 1000);
+		assertEquals(10, length_.report());
+
+		// Stopped: time until next start isn't part of the session
+		clock_.advance(60 * 60 * 1000);
+		length_.start();
+		clock_.advance(5 * 1000);
+		assertEquals(5, length_.report());
+	}
+}
@@ -0,0 +1,131 @@
+package ly.count.android.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SessionTimersTest {
+	private static class Counter implements Runnable {
+		int runs = 0;
+
+		@Override
+		public void run() {
+			runs++;
+		}
+	}
+
+	private final FakeScheduler scheduler_ = new FakeScheduler();
+	private final Counter session_ = new Counter();
+	private final Counter event_ = new Counter();
+	private SessionTimers timers_;
+
+	@Before
+	public void setUp() {
+		timers_ = new SessionTimers(session_, event_, 60 * 1000, 15 * 1000);
+		timers_.setScheduler(scheduler_);
+	}
+
+	@Test
+	public void runsTimersAtTheirOwnIntervals() {
+		timers_.start();
+
+		scheduler_.advance(15 * 1000 - 1);
+		assertEquals(0, event_.runs);
+
+		scheduler_.advance(1);
+		assertEquals(1, event_.runs);
+		assertEquals(0, session_.runs);
+
+		scheduler_.advance(45 * 1000);
+		assertEquals(4, event_.runs);
+		assertEquals(1, session_.runs);
+
+		scheduler_.advance(60 * 1000);
+		assertEquals(8, event_.runs);
+		assertEquals(2, session_.runs);
+	}
+
+	@Test
+	public void schedulesNothingWhileStopped() {
+		assertFalse(timers_.isRunning());
+		assertEquals(0, scheduler_.getPending());
+
+		timers_.start();
+		assertTrue(timers_.isRunning());
+		assertEquals(2, scheduler_.getPending());
+		scheduler_.advance(30 * 1000);
+
+		timers_.stop();
+		assertFalse(timers_.isRunning());
+		assertEquals(0, scheduler_.getPending());
+		scheduler_.advance(10 * 60 * 1000);
+		assertEquals(2, event_.runs);
+		assertEquals(0, session_.runs);
+
+		// Injected scheduler isn't shut down, resuming schedules timers on it again from now on
+		assertFalse(scheduler_.isShutdown());
+		timers_.start();
+		scheduler_.advance(60 * 1000);
+		assertEquals(6, event_.runs);
+		assertEquals(1, session_.runs);
+	}
+
+	@Test
+	public void startsOnce() {
+		timers_.start();
+		timers_.start();
+
+		assertEquals(2, scheduler_.getPending());
+		scheduler_.advance(60 * 1000);
+		assertEquals(1, session_.runs);
+	}
+
+	@Test
+	public void zeroIntervalDisablesTimer() {
+		timers_.setEventFlushInterval(0);
+		timers_.start();
+
+		assertEquals(1, scheduler_.getPending());
+		scheduler_.advance(60 * 60 * 1000);
+		assertEquals(0, event_.runs);
+		assertEquals(60, session_.runs);
+	}
+
+	@Test
+	public void reschedulesRunningTimersOnIntervalChange() {
+		timers_.start();
+		scheduler_.advance(50 * 1000);
+
+		timers_.setSessionUpdateInterval(20 * 1000);
+		scheduler_.advance(20 * 1000 - 1);
+		assertEquals(0, session_.runs);
+		scheduler_.advance(1);
+		assertEquals(1, session_.runs);
+
+		// Interval set while stopped is used by next start
+		timers_.stop();
+		timers_.setEventFlushInterval(5 * 1000);
+		assertEquals(0, scheduler_.getPending());
+		int events = event_.runs;
+		timers_.start();
+		scheduler_.advance(5 * 1000);
+		assertEquals(events + 1, event_.runs);
+	}
+
+	@Test
+	public void movesRunningTimersToNewScheduler() {
+		timers_.start();
+
+		FakeScheduler other = new FakeScheduler();
+		timers_.setScheduler(other);
+		assertTrue(timers_.isRunning());
+		assertEquals(0, scheduler_.getPending());
+		assertEquals(2, other.getPending());
+
+		other.advance(60 * 1000);
+		assertEquals(1, session_.runs);
+	}
+}